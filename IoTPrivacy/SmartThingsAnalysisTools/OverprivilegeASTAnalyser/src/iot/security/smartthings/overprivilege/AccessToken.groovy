@@ -0,0 +1,76 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.MessageDigest
+import java.security.SecureRandom
+
+// A random secret of one start of the analysis daemon or of one corpus run with shard workers.
+// The secret is handed to the clients through a file only the user can read, and every request
+// has to carry it: the daemon and the workers read files and compile (with --evaluate, run)
+// the sources they are sent, so other users and processes of the host must not reach them.
+class AccessToken {
+
+    static final int TOKEN_BYTES = 32
+
+    final String value
+
+    AccessToken(String tokenValue) {
+        value = tokenValue
+    }
+
+    static AccessToken generate() {
+        byte[] bytes = new byte[TOKEN_BYTES]
+        new SecureRandom().nextBytes(bytes)
+        return new AccessToken(bytes.encodeHex().toString())
+    }
+
+    static AccessToken read(File file) {
+        return new AccessToken(file.getText("UTF-8").trim())
+    }
+
+    // Compare in constant time, so the time of a rejected request tells nothing of the token.
+    boolean matches(String given) {
+        return given != null && MessageDigest.isEqual(value.getBytes("UTF-8"), given.getBytes("UTF-8"))
+    }
+
+    // Write the token to a file that only the user can read. The file is created with these
+    // permissions and then moved into place, so it is never readable by others, nor half written.
+    void write(File file) {
+        write(file, value)
+    }
+
+    static void write(File file, String text) {
+        File dir = file.getAbsoluteFile().getParentFile()
+        Path temp
+        try {
+            temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system.
+            temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp")
+            File tempFile = temp.toFile()
+            tempFile.setReadable(false, false)
+            tempFile.setWritable(false, false)
+            tempFile.setReadable(true, true)
+            tempFile.setWritable(true, true)
+        }
+
+        try {
+            temp.toFile().setText(text, "UTF-8")
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+    }
+}
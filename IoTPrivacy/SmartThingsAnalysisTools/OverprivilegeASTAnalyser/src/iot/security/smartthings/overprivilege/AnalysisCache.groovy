@@ -0,0 +1,72 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+// Persistent cache of analyzed apps. An entry is addressed by the hash of the app's path in its
+// corpus and source together with the hash of the capability tables, the skip list and the analysis
+// settings, so editing any of those inputs makes the affected entries unreachable.
+class AnalysisCache {
+
+    // Increase whenever a change to the analysis changes the records of unchanged apps.
+    static final String CACHE_VERSION = "6"
+
+    File dir
+    String inputsHash
+
+    public AnalysisCache(File cacheDir, List<File> inputFiles, String settings) {
+        dir = cacheDir
+        dir.mkdirs()
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256")
+        digest.update((CACHE_VERSION + "\n" + settings + "\n").getBytes("UTF-8"))
+        inputFiles.each { file ->
+            digest.update(file.getName().getBytes("UTF-8"))
+            digest.update(file.exists() ? file.bytes : new byte[0])
+        }
+
+        inputsHash = digest.digest().encodeHex().toString()
+    }
+
+    // Return the stored record of an unchanged app, or null.
+    AppRecord lookup(String path, byte[] source) {
+        File entry = entryFile(path, source)
+        if (!entry.exists())
+            return null
+
+        return AppRecord.fromMap((Map) new JsonSlurper().parse(entry, "UTF-8"))
+    }
+
+    void store(String path, byte[] source, AppRecord record) {
+        File entry = entryFile(path, source)
+        entry.getParentFile().mkdirs()
+
+        // Write to a private file first so concurrent workers never see a partial entry.
+        File temp = File.createTempFile(entry.getName(), ".tmp", entry.getParentFile())
+        temp.setText(JsonOutput.toJson(record.toMap()), "UTF-8")
+        Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    private File entryFile(String path, byte[] source) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256")
+        digest.update(inputsHash.getBytes("UTF-8"))
+        digest.update(path.getBytes("UTF-8"))
+        digest.update(source)
+
+        String key = digest.digest().encodeHex().toString()
+        return new File(new File(dir, key.substring(0, 2)), key + ".json")
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import groovy.json.JsonOutput
+
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+
+// Keeps the capability tables, the compile classpath and a set of warmed-up analysers in one
+// JVM and analyzes apps on request over HTTP on the loopback interface. Start it from the
+// SmartThingsAnalysisTools directory:
+//
+//   AnalysisDaemon [--port=8420] [--threads=N] [--evaluate] [--describe] [--cache=DIR]
+//                  [--app-timeout=SECONDS] [--app-memory=MB] [--capdb=FILE]
+//                  [--token-file=analysis-daemon.token]
+//
+// Requests (every analyzed app is answered with one JSON line, as written by --jsonl):
+//
+//   POST /analyze?path=FILE_OR_CORPUS        analyze an app file, or every app of a directory,
+//                                            zip or tar file (see CorpusSource)
+//   POST /analyze?name=APP.groovy            analyze the app source in the request body (not
+//                                            with --evaluate, which would run it)
+//   GET  /health                             "ok" once the daemon is ready
+//   POST /shutdown                           stop the daemon
+//
+// Every start writes a new random token to the token file, which only the user can read, and
+// every request has to send it as "Authorization: Bearer TOKEN". Requests whose Host or Origin
+// is not the loopback interface are rejected as well, so web pages cannot reach the daemon.
+//
+// e.g. curl -s -X POST -H "Authorization: Bearer $(cat analysis-daemon.token)" \
+//          --data-binary @app.groovy "http://127.0.0.1:8420/analyze?name=app.groovy"
+class AnalysisDaemon {
+
+    static final int DEFAULT_PORT = 8420
+    static final String DEFAULT_TOKEN_FILE = "analysis-daemon.token"
+
+    // Host names of the loopback interface, as sent in the Host and Origin headers. Names are
+    // not resolved, a web page may have its own name resolve to the loopback address.
+    static final List<String> LOCAL_HOSTS = ["localhost", "127.0.0.1", "[::1]"]
+
+    // A minimal app, analyzed by every worker at startup so the classpath is loaded before
+    // the first request.
+    static final String WARMUP_APP = """definition(name: "warmup")
+preferences { input "switches", "capability.switch" }
+def installed() { switches.on() }
+"""
+
+    HttpServer server
+    ExecutorService executor
+    BlockingQueue<AnalysisDriver.AnalysisWorker> idleWorkers = new LinkedBlockingQueue<AnalysisDriver.AnalysisWorker>()
+    AnalysisDriver.RunSettings settings
+    AccessToken token
+    File tokenFile
+
+    static main(def args) {
+        def options = AnalysisDriver.parseOptions(args)
+
+        // The sources of the requests must not fetch dependencies with @Grab when compiled.
+        System.setProperty("groovy.grape.enable", "false")
+
+        def project_root = new File(".").getCanonicalPath()
+        println("Working Path: " + project_root.toString())
+
+        OPAnalysisAST opal = AnalysisDriver.loadAnalyser(project_root, new Logger(), options.capdb ? new File(options.capdb) : null)
+        opal.describeApps = options.describe == "true"
+
+        // Apps are analyzed because they were asked for, so the reflection skip list of the
+        // corpus run does not apply.
+        AnalysisDriver.RunSettings settings = new AnalysisDriver.RunSettings()
+        settings.projectRoot = project_root
+        settings.reflectionSkip = []
+        settings.evaluate = options.evaluate == "true"
+
+        if (options.cache)
+            settings.cache = new AnalysisCache(new File(options.cache), AnalysisDriver.tableFiles(project_root),
+                    "evaluate=" + settings.evaluate + ",describe=" + opal.describeApps)
+
+        settings.watchdog = AnalysisDriver.createWatchdog(options, settings.evaluate)
+
+        int threads = options.threads ? options.threads.toInteger() : Runtime.getRuntime().availableProcessors()
+        int port = options.port ? options.port.toInteger() : DEFAULT_PORT
+
+        AnalysisDaemon daemon = new AnalysisDaemon(opal, settings, threads)
+        daemon.tokenFile = new File(options["token-file"] ?: project_root + "/" + DEFAULT_TOKEN_FILE)
+        daemon.start(port)
+
+        println("Listening on http://127.0.0.1:" + daemon.server.getAddress().getPort() + ", token in " + daemon.tokenFile)
+    }
+
+    public AnalysisDaemon(OPAnalysisAST tables, AnalysisDriver.RunSettings runSettings, int threads) {
+        settings = runSettings
+
+        for (int i = 0; i < threads; i++) {
+            def worker = new AnalysisDriver.AnalysisWorker(tables, settings)
+            AnalysisDriver.analyzeApp("warmup.groovy", worker.opal, null) { worker.compiler.analyze("warmup.groovy", WARMUP_APP) }
+            worker.log.drain()
+            idleWorkers.put(worker)
+        }
+
+        executor = Executors.newFixedThreadPool(threads)
+    }
+
+    void start(int port) {
+        token = AccessToken.generate()
+        token.write(tokenFile)
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0)
+        server.setExecutor(executor)
+
+        server.createContext("/analyze") { HttpExchange exchange -> handle(exchange) { analyze(exchange) } }
+        server.createContext("/health") { HttpExchange exchange -> handle(exchange) { respond(exchange, 200, "ok\n") } }
+        server.createContext("/shutdown") { HttpExchange exchange ->
+            handle(exchange) {
+                respond(exchange, 200, "stopping\n")
+                Thread.start { stop() }
+            }
+        }
+
+        server.start()
+    }
+
+    void stop() {
+        server.stop(0)
+        executor.shutdown()
+        tokenFile.delete()
+    }
+
+    private void analyze(HttpExchange exchange) {
+        if (exchange.getRequestMethod() != "POST") {
+            respond(exchange, 405, "use POST\n")
+            return
+        }
+
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery())
+
+        List<AppRecord> records
+        if (query.name && settings.evaluate) {
+            respond(exchange, 403, "the daemon evaluates apps, give the app as ?path=FILE_OR_CORPUS\n")
+            return
+        } else if (query.path) {
+            File path = new File(query.path)
+            if (!path.exists()) {
+                respond(exchange, 404, "no such file: " + query.path + "\n")
+                return
+            }
+            records = analyzePath(path)
+        } else if (query.name) {
+            String source = exchange.getRequestBody().getText("UTF-8")
+            records = [analyzeSource(query.name, source)]
+        } else {
+            respond(exchange, 400, "give the app as ?path=FILE_OR_CORPUS or as ?name=APP.groovy with the source\n")
+            return
+        }
+
+        StringBuilder body = new StringBuilder()
+        records.each { record ->
+            if (record != null)
+                body.append(JsonOutput.toJson(record.toResultMap())).append('\n')
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8")
+        respond(exchange, 200, body.toString())
+    }
+
+    List<AppRecord> analyzePath(File path) {
+        return withWorker { AnalysisDriver.AnalysisWorker worker ->
+            List<AppRecord> records = new ArrayList<AppRecord>()
+            CorpusSource.open(path).eachEntry { CorpusEntry entry ->
+                records.add(AnalysisDriver.analyzeEntry(entry, worker.compiler, worker.opal, settings))
+            }
+            return records
+        }
+    }
+
+    // Analyze an app given as source. It is not part of a corpus, so its path is the name it
+    // was posted with.
+    AppRecord analyzeSource(String name, String source) {
+        return withWorker { AnalysisDriver.AnalysisWorker worker ->
+            AppRecord record = AnalysisDriver.analyzeApp(name, worker.opal, settings.watchdog) { worker.compiler.analyze(name, source) }
+            record.path = name
+            return record
+        }
+    }
+
+    // Run the given analysis on the next idle worker. The text for the output file is dropped,
+    // requests are answered with the records.
+    private def withWorker(Closure analysis) {
+        AnalysisDriver.AnalysisWorker worker = idleWorkers.take()
+        try {
+            return analysis.call(worker)
+        } finally {
+            worker.log.drain()
+            idleWorkers.put(worker)
+        }
+    }
+
+    // Answer with the error of a failed request (e.g. an app that does not compile) instead
+    // of dropping the connection.
+    private void handle(HttpExchange exchange, Closure handler) {
+        try {
+            if (!isLocal(exchange.getRequestHeaders().getFirst("Host"), false) ||
+                    !isLocal(exchange.getRequestHeaders().getFirst("Origin"), true))
+                respond(exchange, 403, "only local requests are served\n")
+            else if (!token.matches(bearerToken(exchange.getRequestHeaders().getFirst("Authorization"))))
+                respond(exchange, 401, "give the token of " + tokenFile.getName() + " as Authorization: Bearer TOKEN\n")
+            else
+                handler.call()
+        } catch (Exception e) {
+            respond(exchange, 500, e.toString() + "\n")
+        } finally {
+            exchange.close()
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) {
+        byte[] bytes = text.getBytes("UTF-8")
+        if (!exchange.getResponseHeaders().containsKey("Content-Type"))
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8")
+
+        exchange.sendResponseHeaders(status, bytes.length)
+        exchange.getResponseBody().write(bytes)
+    }
+
+    // True when the Host (or Origin, which may be missing) header names the loopback interface.
+    static boolean isLocal(String header, boolean optional) {
+        if (header == null)
+            return optional
+
+        String host = header
+        if (optional) {
+            // An Origin is a URI, "null" for pages without an origin.
+            try {
+                host = new URI(header).getRawAuthority()
+            } catch (URISyntaxException e) {
+                return false
+            }
+            if (host == null)
+                return false
+        }
+
+        int port = host.lastIndexOf(':')
+        if (port > host.lastIndexOf(']'))
+            host = host.substring(0, port)
+        return host.toLowerCase() in LOCAL_HOSTS
+    }
+
+    static String bearerToken(String authorization) {
+        if (authorization == null || !authorization.startsWith("Bearer "))
+            return null
+        return authorization.substring("Bearer ".length()).trim()
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new LinkedHashMap<String, String>()
+        if (rawQuery == null)
+            return query
+
+        rawQuery.split("&").each { String pair ->
+            int index = pair.indexOf('=')
+            if (index > 0)
+                query[URLDecoder.decode(pair.substring(0, index), "UTF-8")] = URLDecoder.decode(pair.substring(index + 1), "UTF-8")
+        }
+        return query
+    }
+}
@@ -8,12 +8,56 @@
 
 package iot.security.smartthings.overprivilege
 
+import groovy.transform.ThreadInterrupt
 import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer
+
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
 
 class AnalysisDriver {
 
+    // Supporting libraries that the SmartApps are compiled against.
+    static final List<String> COMPILE_LIBRARIES = [
+            //2016-6-30: Adds Supporting Libraries
+            "spring-beans-4.3.0.RELEASE.jar",
+            "grails-bootstrap-3.1.9.jar",
+            "grails-core-3.1.9.jar",
+            "grails-encoder-3.1.9.jar",
+            "grails-web-3.1.9.jar",
+            "grails-web-boot-3.1.9.jar",
+            "grails-web-common-3.1.9.jar",
+            "http-builder-0.7.1.jar",
+            "httpclient-4.5.2.jar",
+            "grails-compat-3.1.9.jar",
+            "grails-plugin-converters-3.1.9.jar",
+            "httpcore-4.4.5.jar",
+            "smartthings-stub-classes.jar",
+            "json-20160212.jar",
+
+            // NLG Support
+            "SimpleNLG-4.4.8.jar",
+
+            // Static Analysis Support
+            "CodeNarc-0.25.2.jar",
+    ]
+
     static main(def args) {
 
+        def options = parseOptions(args)
+
+        // Debug tracing (see Trace), e.g. --trace=visitor=debug --trace-file=trace.log
+        // (--trace alone traces every category at debug level). Set before anything loads Trace.
+        if (options.trace)
+            System.setProperty("overpriv.trace", options.trace == "true" ? "debug" : options.trace)
+        if (options["trace-file"])
+            System.setProperty("overpriv.trace.file", options["trace-file"])
+
         def project_root = new File(".").getCanonicalPath()
 
         println("Working Path: " + project_root.toString())
@@ -22,88 +66,414 @@ class AnalysisDriver {
 
         println("Output File Path: " + outputFileName.toString())
 
-        def capsAsPerSamsungFile = project_root + "/" + "Capabilities.csv"
-
         def allCapsFile = project_root + "/" + "capfull.csv"
 
         println("allCaps File Path: " + allCapsFile.toString())
 
-        def sourceCodeDir = project_root + "/" + "Top200Apps"
+        // A directory tree, a zip file or a (gzipped) tar file of apps, see CorpusSource.
+        def sourceCodeDir = options.corpus ?: project_root + "/" + "Top200Apps"
 
         def manualAnalysesReflection = project_root + "/" + "skip_apps_reflection_falsepos.txt"
 
-        CompilerConfiguration cc = new CompilerConfiguration(CompilerConfiguration.DEFAULT)
         Logger log = new Logger(outputFileName)
 
+        // Load the tables from a compiled capability database (compiled first when it is missing
+        // or the tables changed), see CapabilityDatabase.
+        OPAnalysisAST opal = loadAnalyser(project_root, log, options.capdb ? new File(options.capdb) : null)
+
+        def reflFile = new File(manualAnalysesReflection)
+        def reflectionSkip = new ArrayList();
+        reflFile.eachLine { line -> reflectionSkip.add(line + ".txt") }
+
+        RunSettings settings = new RunSettings()
+        settings.projectRoot = project_root
+        settings.reflectionSkip = reflectionSkip
+
+        // Apps are only compiled up to semantic analysis unless --evaluate is given.
+        settings.evaluate = options.evaluate == "true"
+
+        // Natural-language descriptions of the apps are only realised with --describe.
+        opal.describeApps = options.describe == "true"
+
+        // Reuse the records of unchanged apps from an earlier run.
+        if (options.cache) {
+            def inputs = tableFiles(project_root) + [reflFile]
+            settings.cache = new AnalysisCache(new File(options.cache), inputs, "evaluate=" + settings.evaluate + ",describe=" + opal.describeApps)
+        }
+
+        // Structured results: one JSON object per app with --jsonl, and a compact columnar
+        // file for aggregate queries with --columns (written when the run is finished).
+        if (options.jsonl)
+            settings.jsonLines = new JsonLinesWriter(new File(options.jsonl))
+        if (options.columns)
+            settings.columns = new ColumnarResults()
+
+        settings.watchdog = createWatchdog(options, settings.evaluate)
+
+        // Per-app, per-phase timings and allocations, written to PREFIX.csv and PREFIX.prom by
+        // summarize() with --metrics=PREFIX, which also prints the --slowest=N (10) slowest apps.
+        if (options.metrics) {
+            settings.metrics = new AnalysisMetrics(options.metrics, options.slowest ? options.slowest.toInteger() : 10)
+            opal.metrics = settings.metrics
+            opal.timer = new AnalysisMetrics.AppTimer()
+        }
+
+        // Replace the class loader of the apps every --recycle-every=N apps (0 never replaces it).
+        if (options["recycle-every"])
+            settings.recycleEvery = options["recycle-every"].toInteger()
+
+        int threads = options.threads ? options.threads.toInteger() : 1
+
+        CorpusSource corpus = CorpusSource.open(new File(sourceCodeDir))
+
+        // The records written so far are kept when an app fails the run.
+        try {
+            analyzeCorpus(corpus, threads, opal, settings, options)
+            opal.summarize()
+        } finally {
+            log.close()
+            Trace.flush()
+
+            settings.watchdog?.close()
+            settings.jsonLines?.close()
+            if (settings.columns != null)
+                settings.columns.write(new File(options.columns))
+        }
+    }
+
+    // Analyze every app of the corpus and write its record, on the shards, the worker threads or
+    // this thread as the options say.
+    static analyzeCorpus(CorpusSource corpus, int threads, OPAnalysisAST opal, RunSettings settings, Map options) {
+        if (options.shards) {
+            // Split the corpus into --shards=N shards analyzed by other JVMs, on this host or on
+            // the --workers=HOST:PORT,... given (with their --worker-token-file), see ShardCoordinator.
+            ShardCoordinator coordinator = new ShardCoordinator(corpus, options.shards.toInteger(), settings)
+            if (options["shard-retries"])
+                coordinator.retries = options["shard-retries"].toInteger()
+
+            if (options.workers) {
+                if (!options["worker-token-file"])
+                    throw new IllegalArgumentException("--workers needs --worker-token-file=FILE, the token file of the workers")
+                coordinator.addWorkers(options.workers)
+                coordinator.workerToken = AccessToken.read(new File(options["worker-token-file"]))
+            } else {
+                coordinator.localWorkers = options["local-workers"] ? options["local-workers"].toInteger() :
+                        Math.min(coordinator.shards, Runtime.getRuntime().availableProcessors())
+                coordinator.workerOptions = ShardCoordinator.workerOptions(options)
+            }
+
+            coordinator.run(opal)
+        } else if (threads > 1) {
+            analyzeParallel(corpus, threads, opal, settings)
+        } else {
+            AppCompiler compiler = new AppCompiler(createConfiguration(settings.projectRoot, opal, settings.interruptible()),
+                    settings.evaluate, settings.recycleEvery)
+            compiler.checkpoint = { opal.checkpoint() }
+
+            corpus.eachEntry { CorpusEntry entry ->
+                AppRecord record = analyzeEntry(entry, compiler, opal, settings)
+                writeOutput(opal.timer?.take(), settings) {
+                    opal.log.commit()
+                    writeResult(record, settings)
+                }
+            }
+        }
+    }
+
+    // Create an analyser with the capability tables of the project loaded, from the given
+    // capability database when there is one.
+    static OPAnalysisAST loadAnalyser(def project_root, Logger log, File capDb = null) {
         OPAnalysisAST opal = new OPAnalysisAST(log)
-        def allCaps = new File(capsAsPerSamsungFile)
-        def allCapsAll = new File(allCapsFile)
-        opal.loadCapRefAll(allCapsAll)
-        //opal.loadCapRef(allCaps)
 
-        opal.loadCap2Dev(new File(project_root + "/" + "cap2dev.txt"))
-        opal.loadDev2Cap(new File(project_root + "/" + "devhandlers2cap.txt"))
+        List<File> tables = tableFiles(project_root)
+        if (capDb != null) {
+            opal.loadCapabilityDatabase(CapabilityDatabase.open(capDb, tables[0], tables[1], tables[2]))
+        } else {
+            opal.loadCapRefAll(tables[0])
+            //opal.loadCapRef(new File(project_root + "/" + "Capabilities.csv"))
+
+            opal.loadCap2Dev(tables[1])
+            opal.loadDev2Cap(tables[2])
+        }
+        opal.loadSensitiveApiRules(tables[3])
+        opal.capIndex.freeze()
         //opal.dump_Dev2Cap()
 
-        cc.addCompilationCustomizers(opal)
-
-        //2016-6-30: Adds Supporting Libraries
-        cc.classpath.add(project_root + "/pcompile/spring-beans-4.3.0.RELEASE.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-bootstrap-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-core-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-encoder-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-web-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-web-boot-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-web-common-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/http-builder-0.7.1.jar")
-        cc.classpath.add(project_root + "/pcompile/httpclient-4.5.2.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-compat-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/grails-plugin-converters-3.1.9.jar")
-        cc.classpath.add(project_root + "/pcompile/httpcore-4.4.5.jar")
-        cc.classpath.add(project_root + "/pcompile/smartthings-stub-classes.jar")
-        cc.classpath.add(project_root + "/pcompile/json-20160212.jar")
-
-        // NLG Support
-        cc.classpath.add(project_root + "/pcompile/SimpleNLG-4.4.8.jar")
-
-        // Static Analysis Support
-        cc.classpath.add(project_root + "/pcompile/CodeNarc-0.25.2.jar")
+        return opal
+    }
 
-        def reflFile = new File(manualAnalysesReflection)
-        def reflectionSkip = new ArrayList();
-        reflFile.eachLine { line -> reflectionSkip.add(line + ".txt") }
+    // The capability reference, capability to device and device handler to capability tables,
+    // and the sensitive API rules.
+    static List<File> tableFiles(def project_root) {
+        return [new File(project_root + "/" + "capfull.csv"),
+                new File(project_root + "/" + "cap2dev.txt"),
+                new File(project_root + "/" + "devhandlers2cap.txt"),
+                new File(project_root + "/" + "sensitive_apis.csv")]
+    }
 
-        GroovyShell gshell = new GroovyShell(cc)
+    // Parse command line options of the form --name=value (or --name for flags).
+    static Map parseOptions(def args) {
+        def options = [:]
+
+        args.each { String arg ->
+            if (arg.startsWith("--")) {
+                int index = arg.indexOf('=')
+                if (index > 0)
+                    options[arg.substring(2, index)] = arg.substring(index + 1)
+                else
+                    options[arg.substring(2)] = "true"
+            }
+        }
 
-        new File(sourceCodeDir).eachFile { file ->
-            if (file.name.equals(".DS_Store")) {
-                return;
-            } else try {
+        return options
+    }
 
-                println "--> Start processing: ${file.getName()}"
+    // Per-app budget: --app-timeout=SECONDS of wall-clock time and --app-memory=MB of allocation.
+    // An app over its budget stops at the next check of AppWatchdog, the parse of its source
+    // cannot be stopped. Returns null when neither is given.
+    static AppWatchdog createWatchdog(Map options, boolean evaluate) {
+        if (!options["app-timeout"] && !options["app-memory"])
+            return null
 
-                // To compute basic statistics, disable skipping of the reflection skip list files.
+        long timeoutMillis = options["app-timeout"] ? (long) (options["app-timeout"].toDouble() * 1000) : 0
+        long allocationLimit = options["app-memory"] ? options["app-memory"].toLong() << 20 : 0
 
-                if (!(file.getName() in reflectionSkip)) {
-                    log.append "--app-start--"
-                    log.append "processing ${file.getName()}"
-                    gshell.evaluate(file)
-                    log.append "--app-end--"
-                } else
-                    println "skipping ${file.getName()} due to reflection manual analyses"
+        return new AppWatchdog(timeoutMillis, allocationLimit, evaluate)
+    }
 
+    // Build the compiler configuration that runs the given analyser on every compiled SmartApp
+    // (or only compiles them when the analyser is null). Interruptible apps check the interrupt
+    // flag of their thread in every loop, closure and method, so the watchdog can stop evaluated
+    // script code.
+    static CompilerConfiguration createConfiguration(def project_root, OPAnalysisAST opal, boolean interruptible = false) {
+        CompilerConfiguration cc = new CompilerConfiguration(CompilerConfiguration.DEFAULT)
+
+        if (interruptible)
+            cc.addCompilationCustomizers(new ASTTransformationCustomizer(ThreadInterrupt))
+
+        if (opal != null)
+            cc.addCompilationCustomizers(opal)
 
-            } catch (MissingMethodException mme) {
-                // Skip method on *.definition since it does not contain any permission info.
+        COMPILE_LIBRARIES.each { jar -> cc.classpath.add(project_root + "/pcompile/" + jar) }
+
+        return cc
+    }
 
-                def missingMethod = mme.toString()
+    // Analyze a single SmartApp and write its record to the analyser's log. Returns the record,
+    // or null when the app is skipped.
+    static AppRecord analyzeEntry(CorpusEntry entry, AppCompiler compiler, OPAnalysisAST opal, RunSettings settings) {
+        println "--> Start processing: ${entry.name}"
 
-                if (!missingMethod.contains("definition()"))
-                    log.append("missing method: " + missingMethod)
+        // To compute basic statistics, disable skipping of the reflection skip list files.
+
+        if (settings.skips(entry)) {
+            println "skipping ${entry.path} due to reflection manual analyses"
+            return null
+        }
+
+        if (settings.cache != null) {
+            AppRecord cached = settings.cache.lookup(entry.path, entry.source)
+            if (cached != null) {
+                opal.replay(cached)
+                return cached
+            }
+        }
+
+        AppRecord record = analyzeApp(entry.name, opal, settings.watchdog) {
+            compiler.analyze(entry.name, entry.text(compiler.config.getSourceEncoding()))
+        }
+        record.path = entry.path
+
+        // A cancelled app is analyzed again by the next run, which may have a larger budget.
+        if (!record.cancelled)
+            settings.cache?.store(entry.path, entry.source, record)
+        return record
+    }
+
+    // Run the given compilation of an app under the budget of the watchdog (if any) and return
+    // the app's record.
+    static AppRecord analyzeApp(String name, OPAnalysisAST opal, AppWatchdog watchdog, Closure compile) {
+        Logger log = opal.log
+        opal.beginApp(name)
+        opal.watch = watchdog?.start(name)
+        opal.timer?.begin(name)
+
+        try {
+            log.append "--app-start--"
+            log.append "processing ${name}"
+            compile.call()
+            log.append "--app-end--"
+        } catch (MissingMethodException mme) {
+            // Only thrown when the apps are evaluated.
+            // Skip method on *.definition since it does not contain any permission info.
+
+            def missingMethod = mme.toString()
+
+            if (!missingMethod.contains("definition()"))
+                log.append("missing method: " + missingMethod)
+        } catch (Throwable t) {
+            // The compiler wraps the AppCancelledException of the analyser, evaluated script code
+            // stops with an InterruptedException.
+            if (opal.watch == null || !opal.watch.isCancelled())
+                throw t
+
+            println "cancelled ${name}: ${opal.watch.cancelReason}"
+            opal.cancelApp(opal.watch.cancelReason)
+        } finally {
+            opal.timer?.finish()
+            opal.watch?.finish()
+            opal.watch = null
+        }
+
+        return opal.endApp()
+    }
+
+    // Write the output of an app and add the app's timings, with the time of writing its
+    // output, to the metrics of the run. The timings are null for apps that were not analyzed.
+    static writeOutput(AnalysisMetrics.AppTimings timings, RunSettings settings, Closure output) {
+        if (timings == null || settings.metrics == null) {
+            output.call()
+            return
+        }
+
+        long start = System.nanoTime()
+        long allocated = AppWatchdog.allocatedBytes(Thread.currentThread())
+        output.call()
+        long bytes = allocated >= 0 ? AppWatchdog.allocatedBytes(Thread.currentThread()) - allocated : -1
+        timings.add(AnalysisMetrics.OUTPUT, System.nanoTime() - start, bytes)
+
+        settings.metrics.add(timings)
+    }
+
+    // Add the result of an app to the structured outputs of the run.
+    static writeResult(AppRecord record, RunSettings settings) {
+        if (record == null)
+            return
+
+        settings.jsonLines?.write(record)
+        settings.columns?.add(record)
+    }
+
+    // Analyze the SmartApps on a bounded pool of workers. Every worker has its own shell and
+    // analyser, the per-app records are written in the order of the corpus and the summary
+    // counters of all workers are added to the main analyser at the end.
+    static analyzeParallel(CorpusSource corpus, int threads, OPAnalysisAST opal, RunSettings settings) {
+        def idleWorkers = new LinkedBlockingQueue<AnalysisWorker>()
+        def allWorkers = new ArrayList<AnalysisWorker>()
+
+        for (int i = 0; i < threads; i++) {
+            def worker = new AnalysisWorker(opal, settings)
+            allWorkers.add(worker)
+            idleWorkers.put(worker)
+        }
+
+        // Limit the number of records waiting to be written, so a slow app does not make
+        // the finished records of the following apps pile up in memory. The slowest apps take
+        // about 15 times as long as the median one, and with fewer records per thread the other
+        // threads run out of apps while the output waits for such an app.
+        int window = threads * 8
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads)
+        Deque<Future<AnalyzedApp>> pending = new ArrayDeque<Future<AnalyzedApp>>()
+
+        try {
+            corpus.eachEntry { CorpusEntry entry ->
+                if (pending.size() >= window)
+                    writeApp(nextRecord(pending), opal, settings)
+
+                pending.add(pool.submit({
+                    analyzeOnWorker(entry, idleWorkers, settings)
+                } as Callable<AnalyzedApp>))
             }
+
+            while (!pending.isEmpty())
+                writeApp(nextRecord(pending), opal, settings)
+        } finally {
+            pool.shutdownNow()
+        }
+
+        allWorkers.each { worker -> opal.mergeCounters(worker.opal) }
+    }
+
+    // Analyze an app on the next idle worker and return the app's record.
+    static AnalyzedApp analyzeOnWorker(CorpusEntry entry, BlockingQueue<AnalysisWorker> idleWorkers, RunSettings settings) {
+        AnalysisWorker worker = idleWorkers.take()
+        try {
+            AnalyzedApp app = new AnalyzedApp()
+            app.record = analyzeEntry(entry, worker.compiler, worker.opal, settings)
+            app.text = worker.log.drain()
+            app.timings = worker.opal.timer?.take()
+            return app
+        } finally {
+            idleWorkers.put(worker)
         }
+    }
 
-        opal.summarize()
+    // Write the output of an app that was analyzed on a worker, in the order of the corpus.
+    static writeApp(AnalyzedApp app, OPAnalysisAST opal, RunSettings settings) {
+        writeOutput(app.timings, settings) {
+            opal.log.appendRaw(app.text)
+            opal.log.commit()
+            writeResult(app.record, settings)
+        }
+    }
 
+    // Wait for the oldest pending app and return its record.
+    static AnalyzedApp nextRecord(Deque<Future<AnalyzedApp>> pending) {
+        try {
+            return pending.poll().get()
+        } catch (ExecutionException e) {
+            throw e.getCause()
+        }
+    }
+
+    // A worker owns everything that is modified while analyzing an app.
+    static class AnalysisWorker {
+        Logger log
+        OPAnalysisAST opal
+        AppCompiler compiler
+
+        AnalysisWorker(OPAnalysisAST tables, RunSettings settings) {
+            log = new Logger()
+            opal = new OPAnalysisAST(log, tables)
+            if (settings.metrics != null)
+                opal.timer = new AnalysisMetrics.AppTimer()
+            compiler = new AppCompiler(createConfiguration(settings.projectRoot, opal, settings.interruptible()),
+                    settings.evaluate, settings.recycleEvery)
+            compiler.checkpoint = { opal.checkpoint() }
+        }
+    }
+
+    // The output of an app analyzed on a worker: the text for the output file, the record
+    // (null when the app was skipped) and the timings (null unless the run has metrics).
+    static class AnalyzedApp {
+        String text
+        AppRecord record
+        AnalysisMetrics.AppTimings timings
+    }
+
+    // Settings shared by all apps of a run.
+    static class RunSettings {
+        String projectRoot
+        List reflectionSkip
+        boolean evaluate
+        AnalysisCache cache
+        JsonLinesWriter jsonLines
+        ColumnarResults columns
+        AppWatchdog watchdog
+        AnalysisMetrics metrics
+
+        // Apps after which a compiler gets a new class loader, see AppCompiler.
+        int recycleEvery = AppCompiler.DEFAULT_RECYCLE_EVERY
+
+        boolean interruptible() {
+            return watchdog != null && watchdog.interruptThreads
+        }
+
+        // An entry of the skip list is the name of an app or, to tell apart apps of the same
+        // name, its path in the corpus.
+        boolean skips(CorpusEntry entry) {
+            return entry.name in reflectionSkip || entry.path in reflectionSkip
+        }
     }
 }
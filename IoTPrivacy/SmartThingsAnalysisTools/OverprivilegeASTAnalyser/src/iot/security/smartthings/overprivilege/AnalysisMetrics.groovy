@@ -0,0 +1,286 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// Where the time and the allocations of a corpus run go, per app and per analysis phase:
+//
+//   compile             parsing, compiling (and with --evaluate running) the app, outside the phases below
+//   analyzer            OPAnalysisAST.call: the instruction and declaration visitors
+//   processApp          the command and attribute overprivilege
+//   analyzePermissions  the type-2 overprivilege, including the device combination search
+//   subscriptionAttrs   InsnVisitor.getSubscriptionAttrs
+//   nlg                 realising the security descriptions
+//   output              writing the app's output file text and structured results
+//
+// The phases nest (processApp runs inside the analyzer, which runs inside compile), and every
+// phase is only charged for the time and allocations outside the phases nested in it, so the
+// phases of an app add up to its total. Allocations are counted per thread by the JVM and stay
+// 0 when it does not count them.
+//
+// The run adds the timings of every analyzed app; summarize() writes them as <prefix>.csv (one
+// row per app) and <prefix>.prom (latency histograms, allocation counters and the use of the
+// type-2 memo in the Prometheus text format), and prints the slowest apps.
+class AnalysisMetrics {
+
+    static final List<String> PHASES = ["compile", "analyzer", "processApp", "analyzePermissions",
+                                        "subscriptionAttrs", "nlg", "output"]
+
+    static final int COMPILE = 0
+    static final int ANALYZER = 1
+    static final int PROCESS_APP = 2
+    static final int ANALYZE_PERMISSIONS = 3
+    static final int SUBSCRIPTION_ATTRS = 4
+    static final int NLG = 5
+    static final int OUTPUT = 6
+
+    // Upper bounds of the histogram buckets, in seconds.
+    static final double[] BUCKETS = [0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60] as double[]
+
+    final String prefix
+    final int slowest
+
+    private final List<AppTimings> apps = new ArrayList<AppTimings>()
+    private final Histogram[] phaseHistograms = new Histogram[PHASES.size()]
+    private final Histogram appHistogram = new Histogram()
+    private final long[] phaseBytes = new long[PHASES.size()]
+
+    private long type2MemoHits
+    private long type2MemoMisses
+
+    AnalysisMetrics(String filePrefix, int slowestApps) {
+        prefix = filePrefix
+        slowest = slowestApps
+        for (int i = 0; i < phaseHistograms.length; i++)
+            phaseHistograms[i] = new Histogram()
+    }
+
+    synchronized void add(AppTimings timings) {
+        apps.add(timings)
+
+        for (int phase = 0; phase < PHASES.size(); phase++) {
+            phaseHistograms[phase].add(timings.nanos[phase])
+            if (timings.bytes[phase] > 0)
+                phaseBytes[phase] += timings.bytes[phase]
+        }
+        appHistogram.add(timings.totalNanos())
+    }
+
+    // The hits and misses of the type-2 memo in the run, see Type2Memo.
+    synchronized void setType2Memo(long hits, long misses) {
+        type2MemoHits = hits
+        type2MemoMisses = misses
+    }
+
+    synchronized void write() {
+        new File(prefix + ".csv").withWriter("UTF-8") { out -> writeCsv(out) }
+        new File(prefix + ".prom").withWriter("UTF-8") { out -> writePrometheus(out) }
+    }
+
+    void writeCsv(Writer out) {
+        List<String> header = ["app", "total_ms"]
+        PHASES.each { phase -> header.add(phase + "_ms") }
+        PHASES.each { phase -> header.add(phase + "_bytes") }
+        header.add("dominant_phase")
+        out.write(header.join(",") + "\n")
+
+        apps.each { AppTimings timings ->
+            List<String> row = [timings.name, millis(timings.totalNanos())]
+            timings.nanos.each { long nanos -> row.add(millis(nanos)) }
+            timings.bytes.each { long bytes -> row.add(Long.toString(bytes)) }
+            row.add(PHASES[timings.dominantPhase()])
+            out.write(row.join(",") + "\n")
+        }
+    }
+
+    void writePrometheus(Writer out) {
+        out.write("# HELP overpriv_app_seconds Time spent analyzing an app.\n")
+        out.write("# TYPE overpriv_app_seconds histogram\n")
+        appHistogram.write(out, "overpriv_app_seconds", "")
+
+        out.write("# HELP overpriv_phase_seconds Time spent in an analysis phase per app.\n")
+        out.write("# TYPE overpriv_phase_seconds histogram\n")
+        PHASES.eachWithIndex { String phase, int i ->
+            phaseHistograms[i].write(out, "overpriv_phase_seconds", "phase=\"" + phase + "\",")
+        }
+
+        out.write("# HELP overpriv_phase_allocated_bytes_total Bytes allocated in an analysis phase.\n")
+        out.write("# TYPE overpriv_phase_allocated_bytes_total counter\n")
+        PHASES.eachWithIndex { String phase, int i ->
+            out.write("overpriv_phase_allocated_bytes_total{phase=\"" + phase + "\"} " + phaseBytes[i] + "\n")
+        }
+
+        out.write("# HELP overpriv_type2_memo_lookups_total Lookups of the type-2 memo, by result.\n")
+        out.write("# TYPE overpriv_type2_memo_lookups_total counter\n")
+        out.write("overpriv_type2_memo_lookups_total{result=\"hit\"} " + type2MemoHits + "\n")
+        out.write("overpriv_type2_memo_lookups_total{result=\"miss\"} " + type2MemoMisses + "\n")
+    }
+
+    // The slowest apps of the run and the phase that took most of the time of each.
+    synchronized String slowestReport() {
+        List<AppTimings> sorted = apps.sort(false) { a, b -> b.totalNanos() <=> a.totalNanos() }
+
+        StringBuilder report = new StringBuilder("Slowest apps:\n")
+        sorted.take(slowest).eachWithIndex { AppTimings timings, int i ->
+            int phase = timings.dominantPhase()
+            long total = timings.totalNanos()
+            report.append(String.format(Locale.ROOT, "%3d. %s %s ms, %s %d%% (%s ms), %s MB allocated\n", i + 1,
+                    timings.name, millis(total), PHASES[phase], total > 0 ? Math.round(100.0d * timings.nanos[phase] / total) : 0,
+                    millis(timings.nanos[phase]), String.format(Locale.ROOT, "%.1f", timings.totalBytes() / 1048576.0d)))
+        }
+        return report.toString()
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6d)
+    }
+
+    // Cumulative counts of the per-app times below every bucket bound.
+    static class Histogram {
+        long[] counts = new long[BUCKETS.length]
+        long count
+        long sumNanos
+
+        void add(long nanos) {
+            double seconds = nanos / 1e9d
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i])
+                    counts[i]++
+            }
+            count++
+            sumNanos += nanos
+        }
+
+        void write(Writer out, String name, String labels) {
+            for (int i = 0; i < BUCKETS.length; i++)
+                out.write(name + "_bucket{" + labels + "le=\"" + Double.toString(BUCKETS[i]) + "\"} " + counts[i] + "\n")
+            out.write(name + "_bucket{" + labels + "le=\"+Inf\"} " + count + "\n")
+
+            String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}"
+            out.write(name + "_sum" + plain + " " + String.format(Locale.ROOT, "%.6f", sumNanos / 1e9d) + "\n")
+            out.write(name + "_count" + plain + " " + count + "\n")
+        }
+    }
+
+    // The time and allocations of one app per phase.
+    static class AppTimings {
+        String name
+        long[] nanos = new long[PHASES.size()]
+        long[] bytes = new long[PHASES.size()]
+
+        long totalNanos() {
+            long total = 0
+            nanos.each { long n -> total += n }
+            return total
+        }
+
+        long totalBytes() {
+            long total = 0
+            bytes.each { long b -> if (b > 0) total += b }
+            return total
+        }
+
+        int dominantPhase() {
+            int dominant = 0
+            for (int phase = 1; phase < nanos.length; phase++) {
+                if (nanos[phase] > nanos[dominant])
+                    dominant = phase
+            }
+            return dominant
+        }
+
+        void add(int phase, long phaseNanos, long phaseBytes) {
+            nanos[phase] += phaseNanos
+            if (phaseBytes >= 0)
+                bytes[phase] += phaseBytes
+        }
+
+        // The phases, for a ShardWorker to send them to the coordinator with the app's record.
+        Map toMap() {
+            return [nanos: nanos.toList(), bytes: bytes.toList()]
+        }
+
+        static AppTimings fromMap(String name, Map map) {
+            AppTimings timings = new AppTimings()
+            timings.name = name
+            ((List) map.nanos).eachWithIndex { Object n, int phase -> timings.nanos[phase] = ((Number) n).longValue() }
+            ((List) map.bytes).eachWithIndex { Object b, int phase -> timings.bytes[phase] = ((Number) b).longValue() }
+            return timings
+        }
+    }
+
+    // Times the phases of the app an analyser is working on. Owned by the analyser, so only
+    // used by one thread at a time.
+    static class AppTimer {
+        private AppTimings current
+        private AppTimings finished
+
+        private int[] stack = new int[8]
+        private int depth
+
+        private long lastNanos
+        private long lastBytes
+
+        // Start the timings of an app, in the compile phase.
+        void begin(String name) {
+            current = new AppTimings()
+            current.name = name
+            depth = 0
+            lastNanos = System.nanoTime()
+            lastBytes = AppWatchdog.allocatedBytes(Thread.currentThread())
+            push(COMPILE)
+        }
+
+        void enter(int phase) {
+            if (current == null)
+                return
+            charge()
+            push(phase)
+        }
+
+        void exit() {
+            if (current == null)
+                return
+            charge()
+            depth--
+        }
+
+        void finish() {
+            if (current == null)
+                return
+            charge()
+            finished = current
+            current = null
+        }
+
+        // The timings of the last finished app, or null when no app finished since the last call.
+        AppTimings take() {
+            AppTimings timings = finished
+            finished = null
+            return timings
+        }
+
+        private void push(int phase) {
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth * 2)
+            stack[depth++] = phase
+        }
+
+        // Charge the time and allocations since the last phase change to the current phase.
+        private void charge() {
+            long now = System.nanoTime()
+            long allocated = AppWatchdog.allocatedBytes(Thread.currentThread())
+
+            if (depth > 0)
+                current.add(stack[depth - 1], now - lastNanos, allocated >= 0 ? allocated - lastBytes : -1)
+
+            lastNanos = now
+            lastBytes = allocated
+        }
+    }
+}
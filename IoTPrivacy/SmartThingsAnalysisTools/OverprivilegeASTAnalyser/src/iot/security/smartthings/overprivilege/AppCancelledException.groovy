@@ -0,0 +1,17 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// Thrown at a cancellation check of the analysis when the app ran out of its budget.
+class AppCancelledException extends RuntimeException {
+
+    public AppCancelledException(String reason) {
+        super(reason)
+    }
+}
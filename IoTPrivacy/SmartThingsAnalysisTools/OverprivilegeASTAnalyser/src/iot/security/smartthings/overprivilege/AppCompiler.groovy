@@ -0,0 +1,206 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.Phases
+import org.codehaus.groovy.control.ProcessingUnit
+import org.codehaus.groovy.runtime.InvokerHelper
+
+import java.beans.Introspector
+import java.lang.management.ManagementFactory
+
+// Front-end that feeds SmartApps to the analyser. By default an app is only compiled up to
+// the semantic analysis phase, where OPAnalysisAST hooks in, so no bytecode is generated,
+// no classes are loaded and none of the app's script code is run.
+//
+// The class loader (and shell) is replaced every recycleEvery apps, so the classes and caches
+// it collects for the apps (every evaluated app defines its script classes in it) are released
+// and memory stays flat on large corpora. Its parent, between it and the class loader of the
+// analyser, is replaced with it (see AppParentLoader).
+class AppCompiler {
+    static final int DEFAULT_RECYCLE_EVERY = 500
+
+    CompilerConfiguration config
+    GroovyClassLoader loader
+    AppParentLoader parentLoader
+
+    // Fully compile and run every app through a GroovyShell (the original behavior).
+    boolean evaluate
+    GroovyShell shell
+
+    // Number of apps after which the class loader is replaced, 0 to keep it for the whole run.
+    int recycleEvery
+    int appsSinceRecycle
+    int recycles
+
+    // Cancellation point of the analysis (see AppWatchdog), called before every compile phase
+    // and for every class file the compiler looks up, so an app over its budget stops while it
+    // is compiled as well. Parsing the source is a single step and only stops when it is done.
+    Closure checkpoint
+
+    public AppCompiler(CompilerConfiguration cc, boolean evaluateApps, int recycleApps = 0) {
+        config = cc
+        evaluate = evaluateApps
+        recycleEvery = recycleApps
+
+        createLoader()
+    }
+
+    // The parent of the apps' class loader. The compiler looks up every class name an app uses
+    // in every package the app imports (and the default ones), and the class loader of the
+    // analyser keeps a lock object for every name it is asked for, found or not, for the life
+    // of the JVM, a few KB per app. This loader only asks it for the classes it has; the
+    // others are not found here, and the loader is replaced with the apps' class loader.
+    static class AppParentLoader extends ClassLoader {
+        // Packages of the JDK modules, whose class files are looked up through the parent. The
+        // class loaders of the JDK also keep every other name they are asked for a resource of
+        // (the compiler reads the class files of the names it resolves), so the rest is looked
+        // up on the class path of the analyser directly. Java 8 has no modules (the set is null),
+        // and there the class files of the JDK are looked up through its own loaders first.
+        static final Set<String> MODULE_PACKAGES = modulePackages()
+        static final ClassLoader JDK_CLASSES = ClassLoader.getSystemClassLoader().getParent()
+        static final URLClassLoader CLASS_PATH = new URLClassLoader(classPathOf(AppCompiler.class.getClassLoader()), (ClassLoader) null)
+
+        final AppCompiler compiler
+
+        AppParentLoader(ClassLoader parent, AppCompiler compiler) {
+            super(parent)
+            this.compiler = compiler
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (getResource(name.replace('.', '/') + ".class") == null)
+                throw new ClassNotFoundException(name)
+            return super.loadClass(name, resolve)
+        }
+
+        @Override
+        URL getResource(String name) {
+            if (!name.endsWith(".class"))
+                return super.getResource(name)
+            compiler.checkpoint?.call()
+            if (MODULE_PACKAGES == null) {
+                URL url = JDK_CLASSES.getResource(name)
+                return url != null ? url : CLASS_PATH.findResource(name)
+            }
+            int slash = name.lastIndexOf('/')
+            if (slash > 0 && MODULE_PACKAGES.contains(name.substring(0, slash).replace('/', '.')))
+                return getParent().getResource(name)
+            return CLASS_PATH.findResource(name)
+        }
+
+        private static Set<String> modulePackages() {
+            Class<?> layer
+            try {
+                layer = Class.forName("java.lang.ModuleLayer")
+            } catch (ClassNotFoundException e) {
+                return null
+            }
+            Set<String> packages = new HashSet<String>()
+            for (Object module : layer.getMethod("boot").invoke(null).modules())
+                packages.addAll(module.getPackages())
+            return packages
+        }
+
+        private static URL[] classPathOf(ClassLoader loader) {
+            List<URL> urls = []
+            for (ClassLoader l = loader; l != null; l = l.getParent())
+                if (l instanceof URLClassLoader)
+                    urls.addAll(((URLClassLoader) l).getURLs())
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+                if (entry)
+                    urls << new File(entry).toURI().toURL()
+            return urls as URL[]
+        }
+    }
+
+    private void createLoader() {
+        parentLoader = new AppParentLoader(AppCompiler.class.getClassLoader(), this)
+        if (evaluate)
+            shell = new GroovyShell(parentLoader, config)
+        else
+            loader = new GroovyClassLoader(parentLoader, config)
+    }
+
+    // Replace the class loader (or shell) with a new one and drop the classes of the old one,
+    // and their meta classes, so they can be unloaded.
+    void recycle() {
+        GroovyClassLoader old = evaluate ? shell.getClassLoader() : loader
+        old.getLoadedClasses().each { Class loaded -> InvokerHelper.removeClass(loaded) }
+        old.clearCache()
+        old.close()
+
+        // Every loader also defines the global AST transformations of the compile libraries,
+        // and the bean introspection caches of the JDK keep them (softly, until the heap runs
+        // out) and with them the old loader and the state it collected for its apps.
+        Introspector.flushCaches()
+
+        shell = null
+        loader = null
+        parentLoader = null
+        createLoader()
+
+        appsSinceRecycle = 0
+        recycles++
+
+        if (Trace.LOADER >= Trace.INFO) {
+            Runtime runtime = Runtime.getRuntime()
+            Trace.info(Trace.CAT_LOADER, "recycled the app class loader (%d times), %d MB heap used, %d classes loaded",
+                    recycles, (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+                    ManagementFactory.getClassLoadingMXBean().getLoadedClassCount())
+        }
+    }
+
+    // Count an app, after recycling the class loader when it has served enough apps.
+    private void nextApp() {
+        if (recycleEvery > 0 && appsSinceRecycle >= recycleEvery)
+            recycle()
+        appsSinceRecycle++
+    }
+
+    // Returns the compilation unit, or null when the app was evaluated.
+    CompilationUnit analyze(File file) {
+        nextApp()
+
+        if (evaluate) {
+            shell.evaluate(file)
+            return null
+        }
+
+        CompilationUnit unit = newUnit()
+        unit.addSource(file)
+        unit.compile(Phases.SEMANTIC_ANALYSIS)
+        return unit
+    }
+
+    // Same as analyze(File), for an app whose source is given as text.
+    CompilationUnit analyze(String name, String source) {
+        nextApp()
+
+        if (evaluate) {
+            shell.evaluate(source, name)
+            return null
+        }
+
+        CompilationUnit unit = newUnit()
+        unit.addSource(name, source)
+        unit.compile(Phases.SEMANTIC_ANALYSIS)
+        return unit
+    }
+
+    private CompilationUnit newUnit() {
+        CompilationUnit unit = new CompilationUnit(config, null, loader)
+        if (checkpoint != null)
+            unit.setProgressCallback({ ProcessingUnit context, int phase -> checkpoint.call() } as CompilationUnit.ProgressCallback)
+        return unit
+    }
+}
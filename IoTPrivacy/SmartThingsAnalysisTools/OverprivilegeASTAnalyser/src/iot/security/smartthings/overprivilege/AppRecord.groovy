@@ -0,0 +1,143 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// The facts and the overprivilege result collected for a single SmartApp.
+class AppRecord {
+    String name
+
+    // The path of the app in its corpus, which tells apart apps of the same name in different
+    // directories or namespaces. The name for an app that is not part of a corpus.
+    String path
+
+    // Facts derived from the instruction visitor.
+    Set<String> requestedCaps = new LinkedHashSet<String>()
+    Set<String> requestedCommands = new LinkedHashSet<String>()
+    Set<String> requestedAttrs = new LinkedHashSet<String>()
+    Set<String> calledMethods = new LinkedHashSet<String>()
+    Set<String> calledProps = new LinkedHashSet<String>()
+    Set<String> subscriptionAttrs = new LinkedHashSet<String>()
+
+    boolean usesReflection
+    boolean usesAddChildDevice
+    boolean usesSendSms
+    boolean usesOAuth
+    boolean usesInternet
+
+    // The apis of the sensitive API rules the app uses, see SensitiveApiRules.
+    Set<String> sensitiveApis = new LinkedHashSet<String>()
+
+    // Overprivilege result.
+    Set<String> cmdOverpriv = new LinkedHashSet<String>()
+    Set<String> attrOverpriv = new LinkedHashSet<String>()
+    List<String> type2UnusedCaps = new ArrayList<String>()
+    List<String> type2DriverCombination = new ArrayList<String>()
+
+    // Number of unused capabilities of the best driver combination (see Type2Solver), -1 when
+    // there were no devices to choose from, and the time the search for it took, 0 when the app
+    // was not searched or got the result of another app (see Type2Memo).
+    int type2Optimum = -1
+    long type2SolveNanos
+
+    // The type-2 result came from the memo, the search ran for another app.
+    boolean type2Memoized
+
+    // The analysis ran out of its budget (see AppWatchdog), the result above is empty.
+    boolean cancelled
+    String cancelReason
+
+    // Security descriptions, only realised when the run asks for them.
+    Set<String> descriptions = new LinkedHashSet<String>()
+
+    // How much the app added to each of the summary counters.
+    Map<String, Integer> counters = new LinkedHashMap<String, Integer>()
+
+    // The lines the app wrote to the output file.
+    String log = ""
+
+    public AppRecord(String appName) {
+        name = appName
+        path = appName
+    }
+
+    Map toMap() {
+        return [
+                name                  : name,
+                path                  : path,
+                requestedCaps         : requestedCaps.toList(),
+                requestedCommands     : requestedCommands.toList(),
+                requestedAttrs        : requestedAttrs.toList(),
+                calledMethods         : calledMethods.toList(),
+                calledProps           : calledProps.toList(),
+                subscriptionAttrs     : subscriptionAttrs.toList(),
+                usesReflection        : usesReflection,
+                usesAddChildDevice    : usesAddChildDevice,
+                usesSendSms           : usesSendSms,
+                usesOAuth             : usesOAuth,
+                usesInternet          : usesInternet,
+                sensitiveApis         : sensitiveApis.toList(),
+                cmdOverpriv           : cmdOverpriv.toList(),
+                attrOverpriv          : attrOverpriv.toList(),
+                type2UnusedCaps       : type2UnusedCaps,
+                type2DriverCombination: type2DriverCombination,
+                type2Optimum          : type2Optimum,
+                type2SolveNanos       : type2SolveNanos,
+                type2Memoized         : type2Memoized,
+                cancelled             : cancelled,
+                cancelReason          : cancelReason,
+                descriptions          : descriptions.toList(),
+                counters              : counters,
+                log                   : log,
+        ]
+    }
+
+    // The analysis result of the app, without the bookkeeping needed to replay it.
+    Map toResultMap() {
+        Map map = toMap()
+        map.remove("counters")
+        map.remove("log")
+        return map
+    }
+
+    static AppRecord fromMap(Map map) {
+        AppRecord record = new AppRecord((String) map.name)
+        record.path = map.path ?: map.name
+
+        record.requestedCaps.addAll(map.requestedCaps)
+        record.requestedCommands.addAll(map.requestedCommands)
+        record.requestedAttrs.addAll(map.requestedAttrs)
+        record.calledMethods.addAll(map.calledMethods)
+        record.calledProps.addAll(map.calledProps)
+        record.subscriptionAttrs.addAll(map.subscriptionAttrs)
+
+        record.usesReflection = map.usesReflection
+        record.usesAddChildDevice = map.usesAddChildDevice
+        record.usesSendSms = map.usesSendSms
+        record.usesOAuth = map.usesOAuth
+        record.usesInternet = map.usesInternet
+        record.sensitiveApis.addAll(map.sensitiveApis ?: [])
+
+        record.cmdOverpriv.addAll(map.cmdOverpriv)
+        record.attrOverpriv.addAll(map.attrOverpriv)
+        record.type2UnusedCaps.addAll(map.type2UnusedCaps)
+        record.type2DriverCombination.addAll(map.type2DriverCombination)
+        record.type2Optimum = map.type2Optimum != null ? ((Number) map.type2Optimum).intValue() : -1
+        record.type2SolveNanos = map.type2SolveNanos != null ? ((Number) map.type2SolveNanos).longValue() : 0L
+        record.type2Memoized = map.type2Memoized ?: false
+        record.cancelled = map.cancelled ?: false
+        record.cancelReason = map.cancelReason
+        record.descriptions.addAll(map.descriptions ?: [])
+
+        map.counters.each { k, v -> record.counters[(String) k] = ((Number) v).intValue() }
+
+        record.log = map.log
+
+        return record
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.lang.management.ManagementFactory
+import java.lang.management.ThreadMXBean
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+// Bounds the wall-clock time and the memory allocated while analyzing a single app. A
+// background thread polls the apps being analyzed and cancels those over budget; the analysis
+// notices at its next AppWatch.check() and stops with an AppCancelledException. The compiler
+// checks before every phase and at every class file it looks up (see AppCompiler.checkpoint),
+// the visitors at every call and binary expression and the type-2 search at every step. Parsing
+// a source is a single step of the compiler, an app is only stopped after its source is parsed.
+// Script code of evaluated apps does not call check(), so with interruptThreads the analyzing
+// thread is also interrupted (see AnalysisDriver.createConfiguration()).
+class AppWatchdog {
+
+    static final long POLL_MILLIS = 10
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean()
+
+    // Limits, 0 for none.
+    final long timeoutMillis
+    final long allocationLimit
+
+    final boolean interruptThreads
+
+    private final Set<AppWatch> active = Collections.newSetFromMap(new ConcurrentHashMap<AppWatch, Boolean>())
+    private final ScheduledExecutorService poller
+
+    public AppWatchdog(long timeoutMillis, long allocationLimit, boolean interruptThreads) {
+        this.timeoutMillis = timeoutMillis
+        this.allocationLimit = allocationLimit
+        this.interruptThreads = interruptThreads
+
+        poller = Executors.newSingleThreadScheduledExecutor({ Runnable task ->
+            Thread thread = new Thread(task, "app-watchdog")
+            thread.setDaemon(true)
+            return thread
+        } as ThreadFactory)
+        poller.scheduleWithFixedDelay({ poll() } as Runnable, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    // Start watching the analysis of an app on the current thread.
+    AppWatch start(String name) {
+        AppWatch watch = new AppWatch(this, name, Thread.currentThread())
+        active.add(watch)
+        return watch
+    }
+
+    void close() {
+        poller.shutdownNow()
+    }
+
+    private void poll() {
+        long now = System.nanoTime()
+
+        active.each { AppWatch watch ->
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - watch.startNanos)
+            if (timeoutMillis > 0 && elapsedMillis > timeoutMillis) {
+                watch.cancel("timeout after " + elapsedMillis + " ms")
+                return
+            }
+
+            if (allocationLimit > 0 && watch.startAllocated >= 0) {
+                long allocated = allocatedBytes(watch.thread) - watch.startAllocated
+                if (allocated > allocationLimit)
+                    watch.cancel("allocated " + (allocated >> 20) + " MB")
+            }
+        }
+    }
+
+    // Bytes allocated by the given thread so far, or -1 when the JVM does not count them.
+    static long allocatedBytes(Thread thread) {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return -1
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return -1
+
+        return threads.getThreadAllocatedBytes(thread.getId())
+    }
+
+    // The budget of one app. The analysis calls check() at its cancellation points.
+    static class AppWatch {
+        final AppWatchdog watchdog
+        final String name
+        final Thread thread
+        final long startNanos
+        final long startAllocated
+
+        volatile String cancelReason
+        private boolean finished
+
+        AppWatch(AppWatchdog watchdog, String name, Thread thread) {
+            this.watchdog = watchdog
+            this.name = name
+            this.thread = thread
+            startNanos = System.nanoTime()
+            startAllocated = allocatedBytes(thread)
+        }
+
+        void check() {
+            if (cancelReason != null)
+                throw new AppCancelledException(cancelReason)
+        }
+
+        boolean isCancelled() {
+            return cancelReason != null
+        }
+
+        private synchronized void cancel(String reason) {
+            if (finished || cancelReason != null)
+                return
+
+            cancelReason = reason
+            if (watchdog.interruptThreads)
+                thread.interrupt()
+        }
+
+        // Stop watching, on the thread that analyzed the app.
+        synchronized void finish() {
+            finished = true
+            watchdog.active.remove(this)
+
+            // Do not leave a late interrupt behind for the next app.
+            if (watchdog.interruptThreads)
+                Thread.interrupted()
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import groovy.transform.CompileDynamic
+import groovy.transform.CompileStatic
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.StandardOpenOption
+
+// The capability reference (capfull.csv), capability to device (cap2dev.txt) and device to
+// capability (devhandlers2cap.txt) tables compiled into one binary file, so a run maps the
+// file instead of splitting and lower-casing the text tables. The rows are stored as the text
+// loaders see them (already lower-cased and split), every string is stored once and the rows
+// refer to the strings by id.
+//
+// The device tables are not copied onto the heap: cap2devTable and dev2capTable are read-only
+// maps that look their rows up in the mapped file, and their lists decode a string when it is
+// asked for. The mapped file is only read with absolute gets, so the threads of a run share it.
+//
+// File layout (big-endian ints):
+//
+//   magic, version
+//   table count, per table: file name (UTF), length (long), last modified (long)
+//   string count n, n + 1 offsets into the string bytes, the UTF-8 string bytes, the strings
+//                    in the order of their bytes
+//   capability rows: count, then per row: capability, attribute field, command field
+//                    (-1 for a missing field), attribute count, attributes, command count, commands
+//   cap2dev rows:    count, then per row: capability, device count, devices
+//   cap2dev index:   key count, then per key in the order of the strings: key, position of its
+//                    last row in the file
+//   dev2cap rows:    count, then per row: device, capability count, capabilities
+//   dev2cap index:   as the cap2dev index
+//
+// The counts lead their rows, so a row is read in one piece. The database is compiled again
+// when the length or the modification time of a table differs from the one it was compiled
+// from; compile it explicitly after an edit that keeps both:
+//
+//   CapabilityDatabase [--out=capabilities.db]   compile the tables of the working directory
+//
+// The tables are read on every lookup, so the class is compiled statically (a dynamic Groovy
+// map would also look the fields of its class up as keys); compiling runs once and is dynamic.
+@CompileStatic
+class CapabilityDatabase {
+
+    static final int MAGIC = 0x4F504442 // "OPDB"
+    static final int VERSION = 2
+
+    static final String DEFAULT_FILE = "capabilities.db"
+
+    static final Charset UTF8 = Charset.forName("UTF-8")
+
+    final ByteBuffer buffer
+
+    // Positions of the sections of the file.
+    private final int stampsStart
+    private final int stringCount
+    private final int stringOffsets
+    private final int stringBytes
+    private final int capabilityStart
+
+    final Map<String, List<String>> cap2devTable
+    final Map<String, List<String>> dev2capTable
+
+    @CompileDynamic
+    static main(def args) {
+        def options = AnalysisDriver.parseOptions(args)
+        def project_root = new File(".").getCanonicalPath()
+
+        File out = new File(options.out ?: project_root + "/" + DEFAULT_FILE)
+        List<File> tables = AnalysisDriver.tableFiles(project_root)
+
+        compile(tables[0], tables[1], tables[2], out)
+        println "Compiled the capability tables to " + out.getCanonicalPath()
+    }
+
+    // Return the database of the given tables: mapped from the database file when it is up to
+    // date, otherwise compiled from the tables to the database file first.
+    static CapabilityDatabase open(File dbFile, File capRefFile, File cap2devFile, File dev2capFile) {
+        if (dbFile.exists()) {
+            CapabilityDatabase db = read(dbFile)
+            if (db != null && db.isCompiledFrom([capRefFile, cap2devFile, dev2capFile]))
+                return db
+        }
+
+        compile(capRefFile, cap2devFile, dev2capFile, dbFile)
+        return read(dbFile)
+    }
+
+    // Parse the text tables the way OPAnalysisAST.loadCapRefAll(), loadCap2Dev() and
+    // loadDev2Cap() do, and write the database file.
+    @CompileDynamic
+    static void compile(File capRefFile, File cap2devFile, File dev2capFile, File dbFile) {
+        // Stamp the tables before reading them, a table edited meanwhile is compiled again.
+        List<File> tables = [capRefFile, cap2devFile, dev2capFile]
+        List<long[]> stamps = tables.collect { File table -> [table.length(), table.lastModified()] as long[] }
+
+        List<List<String>> capabilityRows = new ArrayList<List<String>>()
+        capRefFile.splitEachLine(",") { fields ->
+            String cap = fields[0]?.toLowerCase()
+            String attrs = fields[1]?.toLowerCase()
+            String commands = fields[2]?.toLowerCase()
+
+            List<String> attrList = attrs != null ? attrs.split(" ").toList() : []
+            List<String> commandList = commands != null ? commands.split(" ").toList() : []
+            capabilityRows.add([cap, attrs, commands, attrList, commandList])
+        }
+
+        List<List<String>> cap2devRows = new ArrayList<List<String>>()
+        cap2devFile.splitEachLine(",") { fields ->
+            cap2devRows.add([fields[0].toLowerCase()] + fields.drop(1))
+        }
+
+        List<List<String>> dev2capRows = new ArrayList<List<String>>()
+        dev2capFile.splitEachLine(",") { fields ->
+            dev2capRows.add([fields[0].toLowerCase()] + fields.drop(1).collect { String cap -> cap.toLowerCase() })
+        }
+
+        // The dictionary, in the order of the UTF-8 bytes so a name is found by binary search.
+        TreeMap<byte[], Integer> dictionary = new TreeMap<byte[], Integer>({ byte[] a, byte[] b -> compareBytes(a, b) } as Comparator<byte[]>)
+        Closure addString = { String s -> if (s != null) dictionary[s.getBytes(UTF8)] = 0 }
+        capabilityRows.each { List row -> row[0..2].each(addString); row[3].each(addString); row[4].each(addString) }
+        (cap2devRows + dev2capRows).each { List<String> row -> row.each(addString) }
+
+        List<byte[]> strings = new ArrayList<byte[]>(dictionary.keySet())
+        strings.eachWithIndex { byte[] bytes, int i -> dictionary[bytes] = i }
+        Closure<Integer> id = { String s -> s != null ? dictionary[s.getBytes(UTF8)] : -1 }
+
+        // Write to a private file first, so a concurrent run never maps a partial database.
+        File temp = File.createTempFile(dbFile.getName(), ".tmp", dbFile.getAbsoluteFile().getParentFile())
+
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))).withStream { DataOutputStream out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+
+            out.writeInt(tables.size())
+            tables.eachWithIndex { File table, int i ->
+                out.writeUTF(table.getName())
+                out.writeLong(stamps[i][0])
+                out.writeLong(stamps[i][1])
+            }
+
+            out.writeInt(strings.size())
+            int offset = 0
+            out.writeInt(offset)
+            strings.each { byte[] bytes ->
+                offset += bytes.length
+                out.writeInt(offset)
+            }
+            strings.each { byte[] bytes -> out.write(bytes) }
+
+            out.writeInt(capabilityRows.size())
+            capabilityRows.each { List row ->
+                [row[0], row[1], row[2]].each { out.writeInt(id((String) it)) }
+                out.writeInt(row[3].size())
+                row[3].each { out.writeInt(id((String) it)) }
+                out.writeInt(row[4].size())
+                row[4].each { out.writeInt(id((String) it)) }
+            }
+
+            [cap2devRows, dev2capRows].each { List<List<String>> rows ->
+                // A later row of a key replaces the earlier one, as in the maps of the text loaders.
+                TreeMap<Integer, Integer> lastRows = new TreeMap<Integer, Integer>()
+
+                out.writeInt(rows.size())
+                rows.each { List<String> row ->
+                    lastRows[id(row[0])] = out.size()
+                    out.writeInt(id(row[0]))
+                    out.writeInt(row.size() - 1)
+                    row.drop(1).each { out.writeInt(id(it)) }
+                }
+
+                out.writeInt(lastRows.size())
+                lastRows.each { Integer key, Integer position ->
+                    out.writeInt(key)
+                    out.writeInt(position)
+                }
+            }
+        }
+
+        if (!temp.renameTo(dbFile)) {
+            dbFile.delete()
+            if (!temp.renameTo(dbFile))
+                throw new IOException("Could not write " + dbFile)
+        }
+    }
+
+    // Map a database file, or return null when it has another format version.
+    static CapabilityDatabase read(File file) {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+        try {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                return null
+            return new CapabilityDatabase(buffer)
+        } finally {
+            channel.close()
+        }
+    }
+
+    private CapabilityDatabase(ByteBuffer mapped) {
+        buffer = mapped
+
+        // Skip over the stamps, they are only read by isCompiledFrom().
+        stampsStart = 8
+        int position = stampsStart + 4
+        for (int i = buffer.getInt(stampsStart); i > 0; i--)
+            position += 2 + (buffer.getShort(position) & 0xffff) + 16
+
+        stringCount = buffer.getInt(position)
+        stringOffsets = position + 4
+        stringBytes = stringOffsets + 4 * (stringCount + 1)
+        capabilityStart = stringBytes + buffer.getInt(stringOffsets + 4 * stringCount)
+
+        position = capabilityStart + 4
+        for (int r = buffer.getInt(capabilityStart); r > 0; r--) {
+            int attrs = buffer.getInt(position + 12)
+            int commands = buffer.getInt(position + 16 + 4 * attrs)
+            position += 4 * (5 + attrs + commands)
+        }
+
+        cap2devTable = new TableView(position)
+        dev2capTable = new TableView(((TableView) cap2devTable).end())
+    }
+
+    // True when the tables have the lengths and modification times the database was compiled from.
+    boolean isCompiledFrom(List<File> tables) {
+        if (buffer.getInt(stampsStart) != tables.size())
+            return false
+
+        int position = stampsStart + 4
+        for (File table : tables) {
+            int nameLength = buffer.getShort(position) & 0xffff
+            String name = decode(position + 2, nameLength)
+            position += 2 + nameLength
+            if (name != table.getName() || buffer.getLong(position) != table.length() ||
+                    buffer.getLong(position + 8) != table.lastModified())
+                return false
+            position += 16
+        }
+        return true
+    }
+
+    // Call the closure with every row of the capability reference: the capability, the
+    // attribute and command fields (null when missing) and the split fields.
+    void eachCapability(Closure action) {
+        int position = capabilityStart + 4
+        for (int r = buffer.getInt(capabilityStart); r > 0; r--) {
+            int attrs = buffer.getInt(position + 12)
+            int commands = buffer.getInt(position + 16 + 4 * attrs)
+            action.call(stringOf(buffer.getInt(position)), stringOf(buffer.getInt(position + 4)),
+                    stringOf(buffer.getInt(position + 8)), new RowList(position + 12),
+                    new RowList(position + 16 + 4 * attrs))
+            position += 4 * (5 + attrs + commands)
+        }
+    }
+
+    // Call the closure with every device and its capabilities, in the order of the table.
+    void eachDev2Cap(Closure action) {
+        ((TableView) dev2capTable).eachRow(action)
+    }
+
+    // The string of an id, null for -1.
+    String stringOf(int id) {
+        if (id < 0)
+            return null
+        int start = buffer.getInt(stringOffsets + 4 * id)
+        return decode(stringBytes + start, buffer.getInt(stringOffsets + 4 * (id + 1)) - start)
+    }
+
+    // The id of a string, -1 when the database does not have it.
+    int idOf(String s) {
+        byte[] key = s.getBytes(UTF8)
+        int low = 0
+        int high = stringCount - 1
+        while (low <= high) {
+            int middle = (low + high) >>> 1
+            int start = buffer.getInt(stringOffsets + 4 * middle)
+            int end = buffer.getInt(stringOffsets + 4 * (middle + 1))
+
+            int order = 0
+            int length = Math.min(end - start, key.length)
+            for (int i = 0; i < length && order == 0; i++)
+                order = (buffer.get(stringBytes + start + i) & 0xff) - (key[i] & 0xff)
+            if (order == 0)
+                order = (end - start) - key.length
+
+            if (order < 0)
+                low = middle + 1
+            else if (order > 0)
+                high = middle - 1
+            else
+                return middle
+        }
+        return -1
+    }
+
+    private String decode(int position, int length) {
+        byte[] bytes = new byte[length]
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(position + i)
+        return new String(bytes, UTF8)
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length)
+        for (int i = 0; i < length; i++) {
+            int order = (a[i] & 0xff) - (b[i] & 0xff)
+            if (order != 0)
+                return order
+        }
+        return a.length - b.length
+    }
+
+    // The strings of a count-led list of ids in the mapped file.
+    private class RowList extends AbstractList<String> implements RandomAccess {
+        final int position
+
+        RowList(int countPosition) {
+            position = countPosition
+        }
+
+        int size() {
+            return buffer.getInt(position)
+        }
+
+        String get(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException("" + index)
+            return stringOf(buffer.getInt(position + 4 + 4 * index))
+        }
+    }
+
+    // A device table: the rows of the keys, found through the index of the table.
+    private class TableView extends AbstractMap<String, List<String>> {
+        final int rowsStart
+        final int indexStart
+
+        TableView(int start) {
+            rowsStart = start
+
+            int position = rowsStart + 4
+            for (int r = buffer.getInt(rowsStart); r > 0; r--)
+                position += 4 * (2 + buffer.getInt(position + 4))
+            indexStart = position
+        }
+
+        int size() {
+            return buffer.getInt(indexStart)
+        }
+
+        // The position after the index.
+        int end() {
+            return indexStart + 4 + 8 * size()
+        }
+
+        List<String> get(Object key) {
+            if (!(key instanceof CharSequence))
+                return null
+            int id = idOf(key.toString())
+            if (id < 0)
+                return null
+
+            int low = 0
+            int high = size() - 1
+            while (low <= high) {
+                int middle = (low + high) >>> 1
+                int found = buffer.getInt(indexStart + 4 + 8 * middle)
+                if (found < id)
+                    low = middle + 1
+                else if (found > id)
+                    high = middle - 1
+                else
+                    return new RowList(buffer.getInt(indexStart + 8 + 8 * middle) + 4)
+            }
+            return null
+        }
+
+        boolean containsKey(Object key) {
+            return get(key) != null
+        }
+
+        // The entries are decoded when the set is asked for, the maps are only iterated to be
+        // compared or dumped.
+        Set<Map.Entry<String, List<String>>> entrySet() {
+            Set<Map.Entry<String, List<String>>> entries = new LinkedHashSet<Map.Entry<String, List<String>>>()
+            for (int i = 0; i < size(); i++) {
+                int entry = indexStart + 4 + 8 * i
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, List<String>>(stringOf(buffer.getInt(entry)),
+                        new RowList(buffer.getInt(entry + 4) + 4)))
+            }
+            return Collections.unmodifiableSet(entries)
+        }
+
+        // Every row in the order of the table, with the rows a later one of its key replaces.
+        void eachRow(Closure action) {
+            int position = rowsStart + 4
+            for (int r = buffer.getInt(rowsStart); r > 0; r--) {
+                action.call(stringOf(buffer.getInt(position)), new RowList(position + 4))
+                position += 4 * (2 + buffer.getInt(position + 4))
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// Assigns dense int ids to the capabilities, commands and attributes of the loaded tables, so
+// sets of them can be kept as BitSets. Names are stored lower-cased, like in the tables.
+// Note that Groovy's BitSet.and()/or() return a new set, so the operators | and & are used.
+//
+// The index is filled while the tables are loaded and frozen before the analysis starts.
+// After that it is read-only (and so safe to share between threads), and the lookups by name
+// return the lists built at load time without allocating.
+class CapabilityIndex {
+    Map<String, Integer> capIds = new HashMap<String, Integer>()
+    List<String> capNames = new ArrayList<String>()
+
+    Map<String, Integer> commandIds = new HashMap<String, Integer>()
+    List<String> commandNames = new ArrayList<String>()
+
+    Map<String, Integer> attrIds = new HashMap<String, Integer>()
+    List<String> attrNames = new ArrayList<String>()
+
+    // Commands and attributes of every capability, indexed by capability id. The lists hold
+    // the fields of the capability reference file as split at load time (in file order and
+    // with the names of the lists above), the BitSets hold their ids.
+    List<List<String>> capCommandList = new ArrayList<List<String>>()
+    List<List<String>> capAttrList = new ArrayList<List<String>>()
+    List<BitSet> capCommands = new ArrayList<BitSet>()
+    List<BitSet> capAttrs = new ArrayList<BitSet>()
+
+    // Capabilities listed in the capability reference file.
+    BitSet catalogCaps = new BitSet()
+
+    // Capabilities implemented by every device handler.
+    Map<String, BitSet> deviceCaps = new HashMap<String, BitSet>()
+
+    // Reverse maps, built by freeze(): the capabilities of every command and attribute.
+    List<BitSet> commandCaps
+    List<BitSet> attrCaps
+    Map<String, List<String>> commandCapList
+    Map<String, List<String>> attrCapList
+
+    // Capabilities with at least one command or attribute.
+    BitSet capsWithMembers
+
+    boolean frozen
+
+    // Id of a known capability, command or attribute, or -1.
+    int capId(String cap) {
+        return idOf(cap, capIds)
+    }
+
+    int commandId(String command) {
+        return idOf(command, commandIds)
+    }
+
+    int attrId(String attr) {
+        return idOf(attr, attrIds)
+    }
+
+    private static int idOf(String name, Map<String, Integer> ids) {
+        Integer id = ids[name]
+        return id != null ? id : -1
+    }
+
+    private int internCap(String cap) {
+        Integer id = capIds[cap]
+        if (id == null) {
+            id = capNames.size()
+            capIds[cap] = id
+            capNames.add(cap)
+            capCommandList.add(Collections.<String> emptyList())
+            capAttrList.add(Collections.<String> emptyList())
+            capCommands.add(new BitSet())
+            capAttrs.add(new BitSet())
+        }
+        return id
+    }
+
+    private static int intern(String name, Map<String, Integer> ids, List<String> names) {
+        Integer id = ids[name]
+        if (id == null) {
+            id = names.size()
+            ids[name] = id
+            names.add(name)
+        }
+        return id
+    }
+
+    // Add a row of the capability reference file. The commands and attributes are the
+    // space-separated fields of the file, a missing field has no entries. A later row for the
+    // same capability replaces the earlier one.
+    void addCapability(String cap, String commands, String attrs) {
+        checkNotFrozen()
+
+        int id = internCap(cap)
+        catalogCaps.set(id)
+
+        BitSet cmdBits = new BitSet()
+        capCommandList[id] = splitNames(commands, commandIds, commandNames, cmdBits)
+        capCommands[id] = cmdBits
+
+        BitSet attrBits = new BitSet()
+        capAttrList[id] = splitNames(attrs, attrIds, attrNames, attrBits)
+        capAttrs[id] = attrBits
+    }
+
+    // addCapability() with the fields already split, e.g. from a CapabilityDatabase. A null
+    // list is a missing field.
+    void addSplitCapability(String cap, List<String> commands, List<String> attrs) {
+        checkNotFrozen()
+
+        int id = internCap(cap)
+        catalogCaps.set(id)
+
+        BitSet cmdBits = new BitSet()
+        capCommandList[id] = internNames(commands, commandIds, commandNames, cmdBits)
+        capCommands[id] = cmdBits
+
+        BitSet attrBits = new BitSet()
+        capAttrList[id] = internNames(attrs, attrIds, attrNames, attrBits)
+        capAttrs[id] = attrBits
+    }
+
+    private static List<String> internNames(List<String> values, Map<String, Integer> ids, List<String> names, BitSet bits) {
+        if (values == null)
+            return Collections.<String> emptyList()
+
+        String[] interned = new String[values.size()]
+        for (int i = 0; i < interned.length; i++) {
+            int id = intern(values[i], ids, names)
+            interned[i] = names[id]
+            bits.set(id)
+        }
+        return Collections.unmodifiableList(Arrays.asList(interned))
+    }
+
+    private static List<String> splitNames(String field, Map<String, Integer> ids, List<String> names, BitSet bits) {
+        return internNames(field != null ? Arrays.asList(field.split(" ")) : null, ids, names, bits)
+    }
+
+    void addDevice(String device, List<String> caps) {
+        checkNotFrozen()
+
+        BitSet bits = new BitSet()
+        caps.each { bits.set(internCap(it)) }
+        deviceCaps[device] = bits
+    }
+
+    // Build the reverse maps and make the index read-only.
+    void freeze() {
+        if (frozen)
+            return
+
+        commandCaps = reverse(capCommands, commandNames.size())
+        attrCaps = reverse(capAttrs, attrNames.size())
+        commandCapList = reverseNames(commandCaps, commandNames)
+        attrCapList = reverseNames(attrCaps, attrNames)
+
+        capsWithMembers = new BitSet()
+        for (int id = 0; id < capNames.size(); id++) {
+            if (!capCommands[id].isEmpty() || !capAttrs[id].isEmpty())
+                capsWithMembers.set(id)
+        }
+
+        capIds = Collections.unmodifiableMap(capIds)
+        capNames = Collections.unmodifiableList(capNames)
+        commandIds = Collections.unmodifiableMap(commandIds)
+        commandNames = Collections.unmodifiableList(commandNames)
+        attrIds = Collections.unmodifiableMap(attrIds)
+        attrNames = Collections.unmodifiableList(attrNames)
+        capCommandList = Collections.unmodifiableList(capCommandList)
+        capAttrList = Collections.unmodifiableList(capAttrList)
+        deviceCaps = Collections.unmodifiableMap(deviceCaps)
+
+        frozen = true
+    }
+
+    private static List<BitSet> reverse(List<BitSet> members, int size) {
+        List<BitSet> caps = new ArrayList<BitSet>(size)
+        for (int i = 0; i < size; i++)
+            caps.add(new BitSet())
+
+        for (int cap = 0; cap < members.size(); cap++) {
+            BitSet bits = members[cap]
+            for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1))
+                caps[id].set(cap)
+        }
+        return Collections.unmodifiableList(caps)
+    }
+
+    private Map<String, List<String>> reverseNames(List<BitSet> caps, List<String> names) {
+        Map<String, List<String>> map = new HashMap<String, List<String>>()
+        for (int id = 0; id < names.size(); id++)
+            map[names[id]] = Collections.unmodifiableList(capNamesOf(caps[id]))
+        return Collections.unmodifiableMap(map)
+    }
+
+    private void checkNotFrozen() {
+        if (frozen)
+            throw new IllegalStateException("The capability index is frozen")
+    }
+
+    private void checkFrozen() {
+        if (!frozen)
+            throw new IllegalStateException("The capability index is not frozen yet")
+    }
+
+    // Commands of a capability as listed in the reference file, empty for unknown names.
+    List<String> commandsOfCap(String cap) {
+        int id = capId(cap)
+        return id >= 0 ? capCommandList[id] : Collections.<String> emptyList()
+    }
+
+    // Attributes of a capability as listed in the reference file, empty for unknown names.
+    List<String> attrsOfCap(String cap) {
+        int id = capId(cap)
+        return id >= 0 ? capAttrList[id] : Collections.<String> emptyList()
+    }
+
+    // Capabilities that define the given command.
+    List<String> capsOfCommand(String command) {
+        checkFrozen()
+        return commandCapList[command] ?: Collections.<String> emptyList()
+    }
+
+    // Capabilities that define the given attribute.
+    List<String> capsOfAttr(String attr) {
+        checkFrozen()
+        return attrCapList[attr] ?: Collections.<String> emptyList()
+    }
+
+    // Ids of the given catalog capabilities; unknown names are ignored.
+    BitSet catalogCapBits(Collection<String> caps) {
+        return namedBits(caps, capIds) & catalogCaps
+    }
+
+    BitSet commandBits(Collection<String> commands) {
+        return namedBits(commands, commandIds)
+    }
+
+    BitSet attrBits(Collection<String> attrs) {
+        return namedBits(attrs, attrIds)
+    }
+
+    private static BitSet namedBits(Collection<String> names, Map<String, Integer> ids) {
+        BitSet bits = new BitSet()
+        names.each { name ->
+            Integer id = ids[name]
+            if (id != null)
+                bits.set(id)
+        }
+        return bits
+    }
+
+    // All commands of the given capabilities.
+    BitSet commandsOf(BitSet caps) {
+        return unionOf(caps, capCommands)
+    }
+
+    // All attributes of the given capabilities.
+    BitSet attrsOf(BitSet caps) {
+        return unionOf(caps, capAttrs)
+    }
+
+    private static BitSet unionOf(BitSet ids, List<BitSet> members) {
+        BitSet bits = new BitSet()
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+            bits = bits | members[id]
+        return bits
+    }
+
+    // Capabilities the App does not use: it calls none of their commands and reads none of
+    // their attributes, and they have at least one command or attribute.
+    BitSet unusedCaps(BitSet calledCommands, BitSet calledAttrs) {
+        checkFrozen()
+
+        BitSet used = unionOf(calledCommands, commandCaps) | unionOf(calledAttrs, attrCaps)
+        BitSet unused = (BitSet) capsWithMembers.clone()
+        unused.andNot(used)
+        return unused
+    }
+
+    List<String> capNamesOf(BitSet bits) {
+        return namesOf(bits, capNames)
+    }
+
+    List<String> commandNamesOf(BitSet bits) {
+        return namesOf(bits, commandNames)
+    }
+
+    List<String> attrNamesOf(BitSet bits) {
+        return namesOf(bits, attrNames)
+    }
+
+    private static List<String> namesOf(BitSet bits, List<String> names) {
+        List<String> result = new ArrayList<String>(bits.cardinality())
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1))
+            result.add(names[id])
+        return result
+    }
+}
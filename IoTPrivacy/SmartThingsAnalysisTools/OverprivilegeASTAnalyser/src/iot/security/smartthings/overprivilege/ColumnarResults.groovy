@@ -0,0 +1,257 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// The results of a run stored column by column, for aggregate queries over large corpora
+// ("how many apps use sendSms", "which capabilities are overprivileged most often") that
+// do not need to parse every record. Every string is stored once in a dictionary, the flags
+// are bitsets over the apps and every set-valued field is an offset column plus a value
+// column of dictionary ids.
+//
+// File layout (big-endian): magic, version, number of apps, the dictionary, the app paths
+// (see AppRecord.path), the flag bitsets and the value columns, each flag and column preceded by its name.
+class ColumnarResults {
+
+    static final int MAGIC = 0x4F50434C // "OPCL"
+    static final int VERSION = 3
+
+    static final List<String> FLAGS = ["usesReflection", "usesAddChildDevice", "usesSendSms",
+                                       "usesOAuth", "usesInternet", "cancelled", "type2Memoized"]
+
+    static final List<String> COLUMNS = ["requestedCaps", "requestedCommands", "requestedAttrs",
+                                         "calledMethods", "calledProps", "subscriptionAttrs",
+                                         "cmdOverpriv", "attrOverpriv", "type2UnusedCaps",
+                                         "type2DriverCombination", "descriptions"]
+
+    private final List<String> dictionary = new ArrayList<String>()
+    private final Map<String, Integer> dictionaryIds = new HashMap<String, Integer>()
+
+    private int appCount
+    private final IntColumn names = new IntColumn()
+    private final Map<String, BitSet> flags = new LinkedHashMap<String, BitSet>()
+    private final Map<String, IntColumn> offsets = new LinkedHashMap<String, IntColumn>()
+    private final Map<String, IntColumn> values = new LinkedHashMap<String, IntColumn>()
+
+    public ColumnarResults() {
+        FLAGS.each { flag -> flags[flag] = new BitSet() }
+        COLUMNS.each { column ->
+            IntColumn columnOffsets = new IntColumn()
+            columnOffsets.add(0)
+            offsets[column] = columnOffsets
+            values[column] = new IntColumn()
+        }
+    }
+
+    synchronized void add(AppRecord record) {
+        int app = appCount++
+        names.add(stringId(record.path))
+
+        FLAGS.each { flag ->
+            if (record[flag])
+                flags[flag].set(app)
+        }
+
+        COLUMNS.each { column ->
+            IntColumn columnValues = values[column]
+            ((Collection<String>) record[column]).each { value -> columnValues.add(stringId(value)) }
+            offsets[column].add(columnValues.size)
+        }
+    }
+
+    int appCount() {
+        return appCount
+    }
+
+    // The path of an app in its corpus.
+    String appName(int app) {
+        return dictionary[names.get(app)]
+    }
+
+    // Number of apps with the given flag set.
+    int countFlag(String flag) {
+        return flags[flag].cardinality()
+    }
+
+    // Values of a column of a single app.
+    List<String> values(String column, int app) {
+        IntColumn columnOffsets = offsets[column]
+        IntColumn columnValues = values[column]
+
+        List<String> result = new ArrayList<String>()
+        for (int i = columnOffsets.get(app); i < columnOffsets.get(app + 1); i++)
+            result.add(dictionary[columnValues.get(i)])
+        return result
+    }
+
+    // Number of values of a column over all apps, by value, most frequent first.
+    Map<String, Integer> valueCounts(String column) {
+        IntColumn columnValues = values[column]
+
+        int[] counts = new int[dictionary.size()]
+        for (int i = 0; i < columnValues.size; i++)
+            counts[columnValues.get(i)]++
+
+        List<Integer> ids = (0..<counts.length).findAll { int id -> counts[id] > 0 }
+        ids.sort { int a, int b -> counts[b] <=> counts[a] ?: dictionary[a] <=> dictionary[b] }
+
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>()
+        ids.each { int id -> result[dictionary[id]] = counts[id] }
+        return result
+    }
+
+    // Names of the apps that have the given value in a column.
+    List<String> appsWith(String column, String value) {
+        List<String> result = new ArrayList<String>()
+
+        Integer id = dictionaryIds[value]
+        if (id == null)
+            return result
+
+        IntColumn columnOffsets = offsets[column]
+        IntColumn columnValues = values[column]
+
+        for (int app = 0; app < appCount; app++) {
+            for (int i = columnOffsets.get(app); i < columnOffsets.get(app + 1); i++) {
+                if (columnValues.get(i) == id) {
+                    result.add(appName(app))
+                    break
+                }
+            }
+        }
+        return result
+    }
+
+    synchronized void write(File file) {
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))).withStream { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(appCount)
+
+            out.writeInt(dictionary.size())
+            dictionary.each { value -> out.writeUTF(value) }
+
+            names.write(out)
+
+            out.writeInt(flags.size())
+            flags.each { flag, bits ->
+                out.writeUTF(flag)
+                long[] words = bits.toLongArray()
+                out.writeInt(words.length)
+                words.each { long word -> out.writeLong(word) }
+            }
+
+            out.writeInt(values.size())
+            values.each { column, columnValues ->
+                out.writeUTF(column)
+                offsets[column].write(out)
+                columnValues.write(out)
+            }
+        }
+    }
+
+    static ColumnarResults read(File file) {
+        ColumnarResults results = new ColumnarResults()
+
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file))).withStream { input ->
+            if (input.readInt() != MAGIC)
+                throw new IOException("not a columnar results file: " + file)
+            int version = input.readInt()
+            if (version != VERSION)
+                throw new IOException("unsupported columnar results version " + version + ": " + file)
+
+            results.appCount = input.readInt()
+
+            int dictionarySize = input.readInt()
+            for (int i = 0; i < dictionarySize; i++)
+                results.stringId(input.readUTF())
+
+            results.names.read(input)
+
+            int flagCount = input.readInt()
+            for (int i = 0; i < flagCount; i++) {
+                String flag = input.readUTF()
+                long[] words = new long[input.readInt()]
+                for (int w = 0; w < words.length; w++)
+                    words[w] = input.readLong()
+                results.flags[flag] = BitSet.valueOf(words)
+            }
+
+            int columnCount = input.readInt()
+            for (int i = 0; i < columnCount; i++) {
+                String column = input.readUTF()
+                IntColumn columnOffsets = new IntColumn()
+                columnOffsets.read(input)
+                IntColumn columnValues = new IntColumn()
+                columnValues.read(input)
+                results.offsets[column] = columnOffsets
+                results.values[column] = columnValues
+            }
+        }
+
+        return results
+    }
+
+    private int stringId(String value) {
+        Integer id = dictionaryIds[value]
+        if (id == null) {
+            id = dictionary.size()
+            dictionary.add(value)
+            dictionaryIds[value] = id
+        }
+        return id
+    }
+
+    // A growable column of ints, kept unboxed.
+    static class IntColumn {
+        int[] data = new int[64]
+        int size
+
+        void add(int value) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2)
+            data[size++] = value
+        }
+
+        int get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size)
+            return data[index]
+        }
+
+        void write(DataOutputStream out) {
+            out.writeInt(size)
+            for (int i = 0; i < size; i++)
+                out.writeInt(data[i])
+        }
+
+        void read(DataInputStream input) {
+            size = input.readInt()
+            data = new int[Math.max(size, 1)]
+            for (int i = 0; i < size; i++)
+                data[i] = input.readInt()
+        }
+    }
+
+    // Print the flag counts and the most frequent values of the columns of a results file:
+    // ColumnarResults <file> [column] [limit]
+    static main(def args) {
+        ColumnarResults results = read(new File(args[0]))
+        List<String> columns = args.length > 1 ? [args[1]] : COLUMNS
+        int limit = args.length > 2 ? args[2].toInteger() : 10
+
+        println "apps: " + results.appCount()
+        FLAGS.each { flag -> println flag + ": " + results.countFlag(flag) }
+
+        columns.each { column ->
+            println ""
+            println column + ":"
+            results.valueCounts(column).take(limit).each { value, count -> println "  " + count + "\t" + value }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// A SmartApp read from a corpus: its file name (which names the app's record), its path in
+// the corpus and its source.
+class CorpusEntry {
+    String name
+    String path
+    byte[] source
+
+    public CorpusEntry(String entryPath, byte[] entrySource) {
+        path = entryPath
+        name = entryPath.substring(entryPath.lastIndexOf('/') + 1)
+        source = entrySource
+    }
+
+    String text(String encoding) {
+        return new String(source, encoding)
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// The SmartApps of a corpus, read one at a time while they are analyzed: a directory tree
+// (e.g. Top200Apps, or SmartThingsPublic with its smartapps/<namespace>/<app>.src/<app>.groovy
+// layout), a zip file, or a tar file (optionally gzipped). Only *.groovy files count as apps;
+// hidden files and directories (.DS_Store, .git, __MACOSX) are skipped.
+abstract class CorpusSource {
+
+    // Call the given closure with every CorpusEntry of the corpus, in the order of the corpus.
+    abstract void eachEntry(Closure action)
+
+    static CorpusSource open(File file) {
+        if (file.isDirectory())
+            return new DirectoryCorpus(file)
+
+        String name = file.getName().toLowerCase()
+        if (name.endsWith(".zip"))
+            return new ZipCorpus(file)
+        if (name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz"))
+            return new TarCorpus(file)
+
+        // A single app.
+        return new DirectoryCorpus(file)
+    }
+
+    // Whether the file at the given (slash-separated) path of a corpus is a SmartApp.
+    static boolean isApp(String path) {
+        if (!path.endsWith(".groovy"))
+            return false
+
+        for (String part : path.split("/")) {
+            if (part.startsWith(".") || part == "__MACOSX")
+                return false
+        }
+        return true
+    }
+}
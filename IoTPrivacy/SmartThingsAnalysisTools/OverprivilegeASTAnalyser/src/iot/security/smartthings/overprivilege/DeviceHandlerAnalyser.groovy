@@ -8,64 +8,289 @@
 
 package iot.security.smartthings.overprivilege
 
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
 import org.codehaus.groovy.ast.ClassCodeVisitorSupport
-import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.ast.ModuleNode
+import org.codehaus.groovy.ast.expr.ArgumentListExpression
+import org.codehaus.groovy.ast.expr.ConstantExpression
+import org.codehaus.groovy.ast.expr.Expression
 import org.codehaus.groovy.ast.expr.MethodCallExpression
-import org.codehaus.groovy.classgen.GeneratorContext
-import org.codehaus.groovy.control.CompilePhase
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.Phases
 import org.codehaus.groovy.control.SourceUnit
-import org.codehaus.groovy.control.customizers.CompilationCustomizer
-import org.codehaus.groovy.transform.GroovyASTTransformation
 
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
-// Create a dummy device handler to test which requested capabilities, commands, attributes are
-// actually used by the Smart Apps.
-@GroovyASTTransformation(phase = CompilePhase.SEMANTIC_ANALYSIS)
-class DeviceHandlerAnalyser extends CompilationCustomizer {
+// Extracts the capabilities, commands and attributes that device handlers declare in their
+// metadata { definition { ... } } block, and writes the tables the analysis loads in place of
+// the ones crawled from the SmartThings IDE with metadevice.py:
+//
+//   cap2dev.txt              capability,handler,handler,...
+//   devhandlers2cap.txt      handler,capability,capability,...
+//   devhandlers-catalog.csv  handler,attributes,commands (the handler's own, in the layout of capfull.csv)
+//
+// A handler is named by its path, e.g. smartthings/zwave-lock for
+// devicetypes/smartthings/zwave-lock.src/zwave-lock.groovy. Handlers are only parsed (no
+// classpath is needed), in parallel, and only the handlers whose source changed since the last
+// run are parsed again; the results are kept in .devhandlers-state.json in the output directory.
+//
+//   DeviceHandlerAnalyser <devicetypes directory, zip or tar file> [--out=DIR] [--threads=N]
+class DeviceHandlerAnalyser {
 
-    List allCommandsList
+    static final String STATE_FILE = ".devhandlers-state.json"
 
-    Logger log
+    // Increase whenever a change to the extraction changes the result for unchanged handlers.
+    static final String STATE_VERSION = "1"
 
-    public DeviceHandlerAnalyser(Logger logger) {
-        super(CompilePhase.SEMANTIC_ANALYSIS)
+    CompilerConfiguration config = new CompilerConfiguration(CompilerConfiguration.DEFAULT)
+    GroovyClassLoader loader = new GroovyClassLoader(DeviceHandlerAnalyser.class.getClassLoader(), config)
 
-        allCommandsList = new ArrayList()
+    static main(def args) {
+        def options = AnalysisDriver.parseOptions(args)
+        List<String> paths = args.findAll { String arg -> !arg.startsWith("--") }
+        if (paths.isEmpty()) {
+            println "usage: DeviceHandlerAnalyser <devicetypes directory, zip or tar file> [--out=DIR] [--threads=N]"
+            return
+        }
+
+        File outDir = new File(options.out ?: ".")
+        int threads = options.threads ? options.threads.toInteger() : Runtime.getRuntime().availableProcessors()
 
-        log = logger
+        List<HandlerInfo> handlers = new DeviceHandlerAnalyser().update(CorpusSource.open(new File(paths[0])), outDir, threads)
+
+        println "Wrote the tables of " + handlers.size() + " device handlers to " + outDir.getCanonicalPath()
     }
 
-    @Override
-    void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+    // Bring the tables in the output directory up to date with the given device handlers and
+    // return the declarations of all handlers.
+    List<HandlerInfo> update(CorpusSource handlers, File outDir, int threads) {
+        outDir.mkdirs()
+
+        File stateFile = new File(outDir, STATE_FILE)
+        Map<String, Map> previous = loadState(stateFile)
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads)
+        Map<String, Future<HandlerInfo>> parsed = new LinkedHashMap<String, Future<HandlerInfo>>()
+        Map<String, HandlerInfo> unchanged = new LinkedHashMap<String, HandlerInfo>()
+        Map<String, String> hashes = new HashMap<String, String>()
+
+        try {
+            handlers.eachEntry { CorpusEntry entry ->
+                String hash = sha256(entry.source)
+                hashes[entry.path] = hash
+
+                Map known = previous[entry.path]
+                if (known != null && known.hash == hash) {
+                    unchanged[entry.path] = HandlerInfo.fromMap(known)
+                    return
+                }
+
+                String id = handlerId(entry.path)
+                String source = entry.text(config.getSourceEncoding())
+                parsed[entry.path] = pool.submit({ analyze(id, source) } as Callable<HandlerInfo>)
+            }
 
-        InsnVisitor insnVis = new InsnVisitor()
-        classNode.visitContents(insnVis)
+            Map<String, HandlerInfo> all = new TreeMap<String, HandlerInfo>(unchanged)
+            parsed.each { path, future ->
+                try {
+                    all[path] = future.get()
+                } catch (ExecutionException e) {
+                    // Left out of the tables and the state, so it is parsed again by the next run.
+                    if (Trace.LOADER >= Trace.WARN)
+                        Trace.warn(Trace.CAT_LOADER, "could not parse device handler %s: %s", path, e.getCause())
+                }
+            }
 
-        processApp(insnVis)
+            println "Device handlers: " + all.size() + " (" + parsed.size() + " parsed, " + unchanged.size() + " unchanged)"
+
+            List<HandlerInfo> infos = all.values().sort(false) { HandlerInfo info -> info.id }
+            writeTables(infos, outDir)
+            saveState(stateFile, all, hashes)
+
+            return infos
+        } finally {
+            pool.shutdownNow()
+        }
     }
 
-    class InsnVisitor extends ClassCodeVisitorSupport {
-        Set<String> nonstdCmds
+    // Parse a device handler and collect the declarations of its definition block.
+    HandlerInfo analyze(String id, String source) {
+        CompilationUnit unit = new CompilationUnit(config, null, loader)
+        SourceUnit sourceUnit = unit.addSource(id.replace('/', '_') + ".groovy", source)
+        unit.compile(Phases.CONVERSION)
+
+        HandlerInfo info = new HandlerInfo(id)
+        DefinitionVisitor visitor = new DefinitionVisitor(info, sourceUnit)
+
+        ModuleNode module = sourceUnit.getAST()
+        module.getClasses().each { classNode -> classNode.visitContents(visitor) }
+
+        return info
+    }
 
-        public InsnVisitor() {
-            nonstdCmds = new HashSet<String>()
+    // Name of a handler: its path without the .src/<name>.groovy file, or without .groovy.
+    static String handlerId(String path) {
+        String id = path.endsWith(".groovy") ? path.substring(0, path.length() - ".groovy".length()) : path
 
+        int slash = id.lastIndexOf('/')
+        if (slash > 0 && id.substring(0, slash).endsWith(".src"))
+            id = id.substring(0, slash - ".src".length())
+
+        return id
+    }
+
+    // "Switch Level" is capability.switchLevel.
+    static String capabilityName(String declared) {
+        List<String> words = declared.trim().split(/\s+/).toList()
+        StringBuilder name = new StringBuilder("capability.")
+        words.eachWithIndex { String word, int i ->
+            if (word.isEmpty())
+                return
+            name.append(i == 0 ? word.substring(0, 1).toLowerCase() : word.substring(0, 1).toUpperCase())
+            name.append(word.substring(1))
+        }
+        return name.toString()
+    }
+
+    static void writeTables(List<HandlerInfo> handlers, File outDir) {
+        Map<String, List<String>> cap2dev = new TreeMap<String, List<String>>()
+        handlers.each { info ->
+            info.capabilities.each { cap ->
+                List<String> devs = cap2dev[cap]
+                if (devs == null) {
+                    devs = new ArrayList<String>()
+                    cap2dev[cap] = devs
+                }
+                devs.add(info.id)
+            }
+        }
+
+        writeLines(new File(outDir, "cap2dev.txt"), cap2dev.collect { cap, devs -> ([cap] + devs).join(",") })
+        writeLines(new File(outDir, "devhandlers2cap.txt"), handlers.collect { info -> info.id + "," + info.capabilities.join(",") })
+        writeLines(new File(outDir, "devhandlers-catalog.csv"), handlers.collect { info ->
+            info.id + "," + info.attributes.join(" ") + "," + info.commands.join(" ")
+        })
+    }
+
+    private static void writeLines(File file, List<String> lines) {
+        file.setText(lines.collect { line -> line + "\n" }.join(""), "UTF-8")
+    }
+
+    private static Map<String, Map> loadState(File stateFile) {
+        if (!stateFile.exists())
+            return [:]
+
+        Map state = (Map) new JsonSlurper().parse(stateFile, "UTF-8")
+        return state.version == STATE_VERSION ? (Map<String, Map>) state.handlers : [:]
+    }
+
+    private static void saveState(File stateFile, Map<String, HandlerInfo> handlers, Map<String, String> hashes) {
+        Map<String, Map> entries = new TreeMap<String, Map>()
+        handlers.each { path, info ->
+            Map entry = info.toMap()
+            entry.hash = hashes[path]
+            entries[path] = entry
+        }
+
+        stateFile.setText(JsonOutput.toJson([version: STATE_VERSION, handlers: entries]), "UTF-8")
+    }
+
+    private static String sha256(byte[] bytes) {
+        return MessageDigest.getInstance("SHA-256").digest(bytes).encodeHex().toString()
+    }
+
+    // The declarations of a device handler, in the order of its definition block.
+    static class HandlerInfo {
+        String id
+        Set<String> capabilities = new LinkedHashSet<String>()
+        Set<String> commands = new LinkedHashSet<String>()
+        Set<String> attributes = new LinkedHashSet<String>()
+
+        HandlerInfo(String handlerId) {
+            id = handlerId
+        }
+
+        Map toMap() {
+            return [id: id, capabilities: capabilities.toList(), commands: commands.toList(), attributes: attributes.toList()]
+        }
+
+        static HandlerInfo fromMap(Map map) {
+            HandlerInfo info = new HandlerInfo((String) map.id)
+            info.capabilities.addAll(map.capabilities)
+            info.commands.addAll(map.commands)
+            info.attributes.addAll(map.attributes)
+            return info
+        }
+    }
+
+    // Collects capability, command and attribute calls inside metadata { definition(...) { } }.
+    static class DefinitionVisitor extends ClassCodeVisitorSupport {
+        HandlerInfo info
+        SourceUnit sourceUnit
+
+        int metadataDepth
+        int definitionDepth
+
+        DefinitionVisitor(HandlerInfo handlerInfo, SourceUnit unit) {
+            info = handlerInfo
+            sourceUnit = unit
         }
 
         @Override
         void visitMethodCallExpression(MethodCallExpression mce) {
+            String method = mce.isImplicitThis() ? mce.getMethodAsString() : null
+
+            if (method == "metadata") {
+                metadataDepth++
+                super.visitMethodCallExpression(mce)
+                metadataDepth--
+                return
+            }
+
+            if (method == "definition" && metadataDepth > 0) {
+                definitionDepth++
+                super.visitMethodCallExpression(mce)
+                definitionDepth--
+                return
+            }
+
+            if (definitionDepth > 0) {
+                String name = firstConstant(mce)
+                if (name != null) {
+                    if (method == "capability")
+                        info.capabilities.add(capabilityName(name))
+                    else if (method == "command")
+                        info.commands.add(name)
+                    else if (method == "attribute")
+                        info.attributes.add(name)
+                }
+            }
 
             super.visitMethodCallExpression(mce)
         }
 
-        @Override
-        protected SourceUnit getSourceUnit() {
-            return null;
-        }
+        private static String firstConstant(MethodCallExpression mce) {
+            if (!(mce.getArguments() instanceof ArgumentListExpression))
+                return null
 
-    }
+            List<Expression> args = ((ArgumentListExpression) mce.getArguments()).getExpressions()
+            if (args.isEmpty() || !(args[0] instanceof ConstantExpression))
+                return null
 
-    def processApp(InsnVisitor insnVis) {
+            Object value = ((ConstantExpression) args[0]).getValue()
+            return value instanceof String ? (String) value : null
+        }
 
+        @Override
+        protected SourceUnit getSourceUnit() {
+            return sourceUnit
+        }
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.function.Predicate
+import java.util.stream.Stream
+
+// The apps of a directory tree, found by a lazy walk, so the first apps are analyzed while
+// the rest of the tree is still being listed. A directory is listed in the order of the file
+// system, like File.eachFile().
+class DirectoryCorpus extends CorpusSource {
+
+    Path root
+
+    public DirectoryCorpus(File dir) {
+        root = dir.toPath()
+    }
+
+    @Override
+    void eachEntry(Closure action) {
+        Stream<Path> paths = Files.walk(root)
+        try {
+            Iterator<Path> apps = paths.filter({ Path path -> Files.isRegularFile(path) && isApp(pathOf(path)) } as Predicate<Path>)
+                    .iterator()
+
+            while (apps.hasNext()) {
+                Path path = apps.next()
+                action.call(new CorpusEntry(pathOf(path), Files.readAllBytes(path)))
+            }
+        } finally {
+            paths.close()
+        }
+    }
+
+    // The slash-separated path of a file relative to the root (its name for a single file).
+    private String pathOf(Path path) {
+        Path relative = root.relativize(path)
+        return relative.toString().isEmpty() ? path.getFileName().toString() : relative.toString().replace(File.separatorChar, (char) '/')
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import groovy.json.JsonOutput
+
+// Writes the result of every analyzed app as one JSON object per line. Every line is flushed
+// as soon as it is written, so the results of a long run can be read while it is running.
+class JsonLinesWriter {
+
+    private final Writer writer
+
+    public JsonLinesWriter(File file) {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))
+    }
+
+    synchronized void write(AppRecord record) {
+        writer.write(JsonOutput.toJson(record.toResultMap()))
+        writer.write('\n')
+        writer.flush()
+    }
+
+    synchronized void close() {
+        writer.close()
+    }
+}
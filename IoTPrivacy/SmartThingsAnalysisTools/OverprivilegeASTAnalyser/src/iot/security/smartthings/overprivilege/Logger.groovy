@@ -8,14 +8,184 @@
 
 package iot.security.smartthings.overprivilege
 
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.CountDownLatch
+
+// Collects the lines of an app's record in memory. A file logger hands every committed record
+// to a background thread that writes it through a large buffer, an in-memory logger (used by
+// the parallel workers) keeps the text until it is drained. The buffer of a file logger is
+// written by close(), or by a shutdown hook when the JVM exits without closing it.
 class Logger {
+    static final int QUEUE_CAPACITY = 64
+    static final int WRITE_BUFFER_SIZE = 1 << 20
+
+    static final Object CLOSE = new Object()
+
     File file
 
+    StringBuilder buffer
+
+    BlockingQueue<Object> queue
+    Thread writer
+    Thread shutdownHook
+    volatile Throwable writeError
+
     public Logger(def filename) {
         file = new File(filename)
+        buffer = new StringBuilder()
+
+        queue = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY)
+        writer = new Thread({ writeRecords() } as Runnable, "logger-" + file.getName())
+        writer.setDaemon(true)
+        writer.start()
+
+        // Only the committed records, the hook may run while an app is appending lines.
+        shutdownHook = new Thread({ writeCommitted() } as Runnable, "logger-" + file.getName() + "-exit")
+        Runtime.getRuntime().addShutdownHook(shutdownHook)
+    }
+
+    // Create a logger that keeps its output in memory until drained.
+    public Logger() {
+        buffer = new StringBuilder()
     }
 
     public void append(String s) {
-        file.append(System.getProperty("line.separator") + s)
+        buffer.append(System.getProperty("line.separator")).append(s)
+    }
+
+    // Append text that was already formatted by another logger.
+    public void appendRaw(String text) {
+        if (text.isEmpty())
+            return
+
+        if (file != null) {
+            commit()
+            enqueue(text)
+        } else
+            buffer.append(text)
+    }
+
+    // Hand the lines appended so far to the writer thread.
+    public void commit() {
+        if (file == null || buffer.length() == 0)
+            return
+
+        enqueue(buffer.toString())
+        buffer.setLength(0)
+    }
+
+    // Commit the pending lines and wait until everything is written to the file.
+    public void flush() {
+        if (file == null)
+            return
+
+        commit()
+        writeCommitted()
+
+        if (writeError != null)
+            throw new IOException("Could not write " + file, writeError)
+    }
+
+    // Flush the file and stop the writer thread.
+    public void close() {
+        if (file == null || !writer.isAlive())
+            return
+
+        try {
+            flush()
+        } finally {
+            enqueue(CLOSE)
+            writer.join()
+            removeShutdownHook()
+        }
+    }
+
+    // Position of the next appended line, see textSince().
+    public int mark() {
+        return buffer.length()
+    }
+
+    // Return the lines appended since the given mark (and not yet committed).
+    public String textSince(int mark) {
+        return buffer.substring(mark)
+    }
+
+    // Drop the lines appended since the given mark (and not yet committed).
+    public void reset(int mark) {
+        buffer.setLength(mark)
+    }
+
+    // Return and clear the buffered output of an in-memory logger.
+    public String drain() {
+        String text = buffer.toString()
+        buffer.setLength(0)
+        return text
+    }
+
+    // Wait until the committed records are written to the file.
+    private void writeCommitted() {
+        if (!writer.isAlive())
+            return
+
+        CountDownLatch written = new CountDownLatch(1)
+        enqueue(written)
+        written.await()
+    }
+
+    private void removeShutdownHook() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook)
+        } catch (IllegalStateException e) {
+            // The JVM is exiting already.
+        }
+    }
+
+    private void enqueue(Object item) {
+        if (!writer.isAlive())
+            throw new IllegalStateException("Logger for " + file + " is closed")
+
+        queue.put(item)
+    }
+
+    // Runs on the writer thread until the logger is closed.
+    private void writeRecords() {
+        Writer out = null
+
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+            out = new BufferedWriter(Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), -1),
+                    WRITE_BUFFER_SIZE)
+        } catch (IOException e) {
+            writeError = e
+        }
+
+        while (true) {
+            Object item = queue.take()
+
+            try {
+                if (item instanceof String) {
+                    out?.write((String) item)
+                } else if (item instanceof CountDownLatch) {
+                    out?.flush()
+                } else if (item.is(CLOSE)) {
+                    out?.close()
+                    return
+                }
+            } catch (IOException e) {
+                // Keep taking records so that producers never block on a failed writer,
+                // the error is reported by the next flush.
+                writeError = e
+                out = null
+            } finally {
+                if (item instanceof CountDownLatch)
+                    ((CountDownLatch) item).countDown()
+            }
+        }
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import simplenlg.framework.NLGFactory
+import simplenlg.lexicon.Lexicon
+import simplenlg.phrasespec.SPhraseSpec
+import simplenlg.realiser.english.Realiser
+
+import java.util.concurrent.ConcurrentHashMap
+
+// Realises the security descriptions of the apps ("The App uses Internet."). The SimpleNLG
+// lexicon is loaded once per process, on the first sentence, and every realised sentence is
+// cached by its subject, verb and object. SimpleNLG is not thread-safe, so realisation is
+// serialized; cached sentences are returned without locking.
+class NlgService {
+
+    private static volatile NlgService instance
+
+    static NlgService get() {
+        NlgService service = instance
+        if (service == null) {
+            synchronized (NlgService.class) {
+                service = instance
+                if (service == null) {
+                    service = new NlgService()
+                    instance = service
+                }
+            }
+        }
+        return service
+    }
+
+    private final NLGFactory nlgFactory
+    private final Realiser realiser
+
+    private final ConcurrentHashMap<String, String> sentences = new ConcurrentHashMap<String, String>()
+
+    private NlgService() {
+        Lexicon lexicon = Lexicon.getDefaultLexicon()
+        nlgFactory = new NLGFactory(lexicon)
+        realiser = new Realiser(lexicon)
+    }
+
+    String sentence(String subject, String verb, String object) {
+        String key = subject + "\u0000" + verb + "\u0000" + object
+
+        String sentence = sentences.get(key)
+        if (sentence == null) {
+            sentence = realise(subject, verb, object)
+            sentences.putIfAbsent(key, sentence)
+        }
+        return sentence
+    }
+
+    private synchronized String realise(String subject, String verb, String object) {
+        SPhraseSpec clause = nlgFactory.createClause()
+        clause.setSubject(subject)
+        clause.setVerb(verb)
+        clause.setObject(object)
+        return realiser.realiseSentence(clause)
+    }
+}
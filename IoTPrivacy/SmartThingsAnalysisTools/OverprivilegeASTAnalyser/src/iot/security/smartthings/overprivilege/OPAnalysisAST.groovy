@@ -23,166 +23,34 @@ import org.codehaus.groovy.control.messages.LocatedMessage
 import org.codehaus.groovy.syntax.Token
 import org.codehaus.groovy.transform.GroovyASTTransformation
 
-import simplenlg.framework.*
-import simplenlg.lexicon.*
-import simplenlg.realiser.english.*
-import simplenlg.phrasespec.*
-
 @GroovyASTTransformation(phase = CompilePhase.SEMANTIC_ANALYSIS)
 class OPAnalysisAST extends CompilationCustomizer {
 
+    // The capability reference as read by the text loaders (not by loadCapabilityDatabase(),
+    // the analysis uses capIndex).
     Map allCommands
     Map allProps
 
     Map dev2cap
     Map cap2dev
 
-    // Define capability description mapping.
-    Map<String, String> Cap_Map = [
-            'accelerationsensor'         : 'acceleration sensor',
-            'alarm'                      : 'alarm',
-            'battery'                    : 'battery',
-            'beacon'                     : 'beacon',
-            'button'                     : 'button',
-            'carbonDioxideMeasurement'   : 'carbon dioxide sensor',
-            'carbonMonoxideDetector'     : 'carbon monoxide detector',
-            'colorControl'               : 'light color control',
-            'colorTemperature'           : 'light color temperature',
-            'contactSensor'              : 'contact sensor',
-            'doorControl'                : 'door control',
-            'energyMeter'                : 'energy meter',
-            'garageDoorControl'          : 'garage door control',
-            'illuminanceMeasurement'     : 'light sensor',
-            'imageCapture'               : 'camera',
-            'indicator'                  : 'LED indicator',
-            'lock'                       : 'lock',
-            'mediaController'            : 'media controller',
-            'motionSensor'               : 'motion sensor',
-            'musicPlayer'                : 'music player',
-            'occupancy'                  : 'occupancy sensor',
-            'pHMeasurement'              : 'PH sensor',
-            'polling'                    : 'polling device',
-            'powerMeter'                 : 'power meter',
-            'power'                      : 'power',
-            'presenceSensor'             : 'presence sensor',
-            'relativeHumidityMeasurement': 'humidity sensor',
-            'relaySwitch'                : 'relay switch',
-            'shockSensor'                : 'shock sensor',
-            'sleepSensor'                : 'sleep sensor',
-            'smokeDetector'              : 'smoke detector',
-            'soundSensor'                : 'sound sensor',
-            'speechRecognition'          : 'speech recognition device',
-            'speechSynthesis'            : 'speech synthesis device',
-            'stepSensor'                 : 'step sensor',
-            'switch'                     : 'switch',
-            'switchLevel'                : 'light level controller',
-            'soundPressureLevel'         : 'sound pressure level sensor',
-            'tamperAlert'                : 'tamper sensor',
-            'temperaturemeasurement'     : 'temperature sensor',
-            'thermostat'                 : 'thermostat',
-            'thermostatCoolingSetpoint'  : 'thermostat cooling set-point',
-            'thermostatFanMode'          : 'thermostat fan mode',
-            'thermostatHeatingSetpoint'  : 'thermostat heating set-point',
-            'thermostatMode'             : 'thermostat mode',
-            'thermostatOperatingState'   : 'thermostat operating state',
-            'thermostatSetpoint'         : 'thermostat set-point',
-            'threeAxis'                  : 'three axis sensor',
-            'tone'                       : 'beeper',
-            'touchSensor'                : 'touch sensor',
-            'ultravioletIndex'           : 'ultraviolet index sensor',
-            'valve'                      : 'valve',
-            'voltageMeasurement'         : 'voltage sensor',
-            'watersensor'                : 'water sensor',
-            'windowShade'                : 'window shade',
-    ]
-
-    // Define sensitive command description mapping.
-    Map<String, String> Sen_Com_Map = [
-            'on'                  : 'turn on',
-            'strobe'              : 'strobe',
-            'siren'               : 'siren',
-            'both'                : 'strobe and siren',
-            'open'                : 'open',
-            'close'               : 'close',
-            'take'                : 'take photo',
-            'unlock'              : 'unlock',
-            'startActivity'       : 'start activity',
-            'getAllActivities'    : 'get all activities',
-            'getCurrentActivity'  : 'get current activity',
-            'play'                : 'play',
-            'pause'               : 'pause',
-            'stop'                : 'stop',
-            'playTrack'           : 'play track',
-            'setHeatingSetpoint'  : 'adjust thermostat heating set-point',
-            'setCoolingSetpoint'  : 'adjust thermostat cooling set-point',
-            'heat'                : 'adjust thermostat heat mode',
-            'cool'                : 'adjust thermostat cool mode',
-            'setThermostatMode'   : 'adjust thermostat mode',
-            'setThermostatFanMode': 'adjust thermostat fan mode',
-    ]
-
-    // Define less sensitive command description mapping.
-    Map<String, String> Less_Com_Map = [
-            'off'                : 'turn off',
-            'setHue'             : 'set light hue',
-            'setSaturation'      : 'set light saturation',
-            'setColor'           : 'set light color',
-            'setColorTemperature': 'set light color temperature',
-            'open'               : 'open',
-            'close'              : 'close',
-            'take'               : 'take photo',
-            'lock'               : 'lock',
-            'startActivity'      : 'start activity',
-            'getAllActivities'   : 'get all activities',
-            'getCurrentActivity' : 'get current activity',
-            'play'               : 'play',
-            'pause'              : 'pause',
-            'stop'               : 'stop',
-            'playTrack'          : 'play track',
-    ]
-
-    // Define subscription description mapping.
-    Map<String, String> Sub_Map = [
-            'acceleration.active'       : 'acceleration active',
-            'acceleration.inactive'     : 'acceleration inactive',
-            'alarm.strobe'              : 'alarm strobe',
-            'alarm.siren'               : 'alarm siren',
-            'alarm.both'                : 'alarm strobe and siren',
-            'alarm.off'                 : 'alarm off',
-            'presenceSensor.present'    : 'people present',
-            'presenceSensor.not present': 'people not present',
-            'button.held'               : 'button held',
-            'button.pushed'             : 'button pushed',
-            'carbonMonoxide.tested'     : 'carbon monoxide tested',
-            'carbonMonoxide.clear'      : 'carbon monoxide clear',
-            'carbonMonoxide.detected'   : 'carbon monoxide detected',
-    ]
-
-    // Define attribute description mapping.
-    Map<String, String> Attr_Map = [
-            'alarm'                    : 'alarm',
-            'button'                   : 'button',
-            'doorControl'              : 'door control',
-            'garageDoorControl'        : 'garage door control',
-            'lock'                     : 'lock',
-            'mediaController'          : 'media controller',
-            'motionSensor'             : 'motion sensor',
-            'musicPlayer'              : 'music player',
-            'relaySwitch'              : 'relay switch',
-            'speechRecognition'        : 'speech recognition device',
-            'speechSynthesis'          : 'speech synthesis device',
-            'switch'                   : 'switch',
-            'thermostat'               : 'thermostat',
-            'thermostatCoolingSetpoint': 'thermostat cooling set-point',
-            'thermostatFanMode'        : 'thermostat fan mode',
-            'thermostatHeatingSetpoint': 'thermostat heating set-point',
-            'thermostatMode'           : 'thermostat mode',
-            'thermostatOperatingState' : 'thermostat operating state',
-            'thermostatSetpoint'       : 'thermostat set-point',
-            'tone'                     : 'beeper',
-            'valve'                    : 'valve',
-            'windowShade'              : 'window shade',
-    ]
+    // Dense ids and bit sets for the loaded capabilities, commands and attributes.
+    CapabilityIndex capIndex
+
+    // Type-2 results shared between the apps, see analyzePermissions().
+    Type2Memo type2Memo
+
+    // The sensitive APIs flagged by the instruction visitor and the description tables, loaded
+    // from sensitive_apis.csv, see SensitiveApiRules.
+    SensitiveApiRules apiRules
+
+    // Capability, sensitive command, less sensitive command, subscription and attribute
+    // description mappings.
+    Map<String, String> Cap_Map
+    Map<String, String> Sen_Com_Map
+    Map<String, String> Less_Com_Map
+    Map<String, String> Sub_Map
+    Map<String, String> Attr_Map
 
     List allCommandsList
     List allPropsList
@@ -200,8 +68,26 @@ class OPAnalysisAST extends CompilationCustomizer {
     int numOAuth
     int numInternet
 
+    int numCancelled
+
     Logger log
 
+    // Realise the natural-language security descriptions of the apps (see NlgService).
+    boolean describeApps
+
+    // Record of the app that is currently analyzed, see beginApp().
+    AppRecord record
+    Map<String, Integer> countersAtAppStart
+    int logMarkAtAppStart
+
+    // Budget of the app that is currently analyzed, null when the run has none.
+    AppWatchdog.AppWatch watch
+
+    // Phase timings of the app that is currently analyzed and the metrics of the run, null when
+    // the run has no metrics (see AnalysisMetrics).
+    AnalysisMetrics.AppTimer timer
+    AnalysisMetrics metrics
+
     public OPAnalysisAST(Logger logger) {
         super(CompilePhase.SEMANTIC_ANALYSIS)
 
@@ -211,6 +97,10 @@ class OPAnalysisAST extends CompilationCustomizer {
         cap2dev = new HashMap()
         dev2cap = new HashMap()
 
+        capIndex = new CapabilityIndex()
+        type2Memo = new Type2Memo()
+        useApiRules(new SensitiveApiRules())
+
         allCommandsList = new ArrayList()
         allPropsList = new ArrayList()
         allCapsList = new ArrayList()
@@ -229,31 +119,153 @@ class OPAnalysisAST extends CompilationCustomizer {
         numOAuth = 0
         numInternet = 0
 
+        numCancelled = 0
+
         log = logger
     }
 
-    @Override
-    void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+    // Create an analyser for a parallel worker. The capability and device tables are only
+    // read during the analysis, so they are shared with the already loaded analyser.
+    public OPAnalysisAST(Logger logger, OPAnalysisAST tables) {
+        this(logger)
 
-        //Use method code visitor to collect declaration expressions
-        MethodCodeVisitor mcvDex = new MethodCodeVisitor()
-        classNode.visitContents(mcvDex)
+        allCommands = tables.allCommands
+        allProps = tables.allProps
 
-        //Run an instruction visitor
-        InsnVisitor insnVis = new InsnVisitor(mcvDex.dexpressions, mcvDex.bexpressions)
-        classNode.visitContents(insnVis)
+        cap2dev = tables.cap2dev
+        dev2cap = tables.dev2cap
 
-        def allMethodNodes = classNode.getAllDeclaredMethods()
-        def allFieldNodes = classNode.getFields()
+        capIndex = tables.capIndex
+        type2Memo = tables.type2Memo
+        useApiRules(tables.apiRules)
+        describeApps = tables.describeApps
 
-        ArrayList<String> declaredMethods = new ArrayList<String>()
-        allMethodNodes.each { it -> declaredMethods.add(it.getName().toLowerCase()) }
+        allCommandsList = tables.allCommandsList
+        allPropsList = tables.allPropsList
+        allCapsList = tables.allCapsList
+    }
+
+    // Add the summary counters of a worker analyser to this one.
+    def mergeCounters(OPAnalysisAST other) {
+        addCounters(other.counters())
+    }
+
+    // The current values of the summary counters.
+    Map<String, Integer> counters() {
+        return [
+                numCmdOverpriv    : numCmdOverpriv,
+                numAttrOverpriv   : numAttrOverpriv,
+                numTotalOverpriv  : numTotalOverpriv,
+                numReflection     : numReflection,
+                type2_numCaps     : type2_numCaps,
+                samename_flags    : samename_flags,
+                type2_cmdattr_uses: type2_cmdattr_uses,
+                numSendSms        : numSendSms,
+                numOAuth          : numOAuth,
+                numInternet       : numInternet,
+                numCancelled      : numCancelled,
+        ]
+    }
 
-        processApp(insnVis, declaredMethods)
+    def addCounters(Map<String, Integer> deltas) {
+        deltas.each { name, delta -> this[name] += delta }
+    }
+
+    // Start collecting the record of an app. Everything the analysis finds and logs until
+    // endApp() is attributed to this app.
+    def beginApp(String name) {
+        record = new AppRecord(name)
+        countersAtAppStart = counters()
+        logMarkAtAppStart = log.mark()
+    }
+
+    AppRecord endApp() {
+        AppRecord finished = record
+
+        counters().each { name, value ->
+            int delta = value - countersAtAppStart[name]
+            if (delta != 0)
+                finished.counters[name] = delta
+        }
+        finished.log = log.textSince(logMarkAtAppStart)
+
+        record = null
+        return finished
+    }
+
+    // Drop what the analysis of the current app found so far and record it as cancelled.
+    def cancelApp(String reason) {
+        countersAtAppStart.each { name, value -> this[name] = value }
+        numCancelled++
+
+        record = new AppRecord(record.name)
+        record.cancelled = true
+        record.cancelReason = reason
+
+        log.reset(logMarkAtAppStart)
+        log.append "--app-start--"
+        log.append "processing ${record.name}"
+        log.append "cancelled: " + reason
+    }
+
+    // Cancellation point of the analysis, throws AppCancelledException when the current app
+    // is over its budget.
+    void checkpoint() {
+        watch?.check()
+    }
+
+    // Output a previously computed record as if the app had been analyzed again.
+    def replay(AppRecord finished) {
+        log.appendRaw(finished.log)
+        addCounters(finished.counters)
+    }
+
+    @Override
+    void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+        inPhase(AnalysisMetrics.ANALYZER) {
+            analyze(visitApp(classNode), declaredMethodsOf(classNode))
+        }
+    }
+
+    void analyze(InsnVisitor insnVis, ArrayList<String> declaredMethods) {
+        def calledCmdAttr = inPhase(AnalysisMetrics.PROCESS_APP) { processApp(insnVis, declaredMethods) }
 
         // Analyze the number of unused capabilities. These unused capabilities come from the device
         // handlers with multiple capabilities.
-        analyzePermissions(insnVis, declaredMethods)
+        inPhase(AnalysisMetrics.ANALYZE_PERMISSIONS) { analyzePermissions(insnVis, declaredMethods, calledCmdAttr) }
+    }
+
+    // Run the closure as the given phase of the app's timings, when the run has metrics.
+    def inPhase(int phase, Closure body) {
+        if (timer == null)
+            return body.call()
+
+        timer.enter(phase)
+        try {
+            return body.call()
+        } finally {
+            timer.exit()
+        }
+    }
+
+    // Realise a sentence of the App's security description.
+    String realise(String verb, String object) {
+        return inPhase(AnalysisMetrics.NLG) { NlgService.get().sentence("The App", verb, object) }
+    }
+
+    // Run an instruction visitor, it collects the declaration expressions in the same walk.
+    InsnVisitor visitApp(ClassNode classNode) {
+        InsnVisitor insnVis = new InsnVisitor()
+        classNode.visitContents(insnVis)
+        insnVis.resolveDeferredInputs()
+        insnVis.releaseAst()
+        return insnVis
+    }
+
+    ArrayList<String> declaredMethodsOf(ClassNode classNode) {
+        ArrayList<String> declaredMethods = new ArrayList<String>()
+        classNode.getAllDeclaredMethods().each { it -> declaredMethods.add(it.getName().toLowerCase()) }
+        return declaredMethods
     }
 
     class MethodCodeVisitor extends ClassCodeVisitorSupport {
@@ -262,6 +274,11 @@ class OPAnalysisAST extends CompilationCustomizer {
         public ArrayList<BinaryExpression> bexpressions
         public ArrayList<IfStatement> conditions
 
+        // The binary expressions by the name of the variable or the text of the property on
+        // their left side, in the order they were visited.
+        public Map<String, List<BinaryExpression>> variableAssignments
+        public Map<String, List<BinaryExpression>> propertyAssignments
+
         protected ClassNode currentClassNode
         protected Set<ClosureExpression> transformedExpressions = new HashSet<ClosureExpression>()
 
@@ -270,12 +287,51 @@ class OPAnalysisAST extends CompilationCustomizer {
             dexpressions = new ArrayList<DeclarationExpression>()
             bexpressions = new ArrayList<BinaryExpression>()
             conditions = new ArrayList<IfStatement>()
+            variableAssignments = new HashMap<String, List<BinaryExpression>>()
+            propertyAssignments = new HashMap<String, List<BinaryExpression>>()
         }
 
         // Defines binary expressions
         @Override
         public void visitBinaryExpression(BinaryExpression bex) {
+            checkpoint()
+
             bexpressions.add(bex)
+
+            Expression left = bex.getLeftExpression()
+            if (left instanceof VariableExpression)
+                addAssignment(variableAssignments, ((VariableExpression) left).getName(), bex)
+            else if (left instanceof PropertyExpression)
+                addAssignment(propertyAssignments, left.getText(), bex)
+        }
+
+        // Drop the collected AST nodes, the global variable names are kept.
+        void releaseAst() {
+            dexpressions.clear()
+            bexpressions.clear()
+            conditions.clear()
+            variableAssignments.clear()
+            propertyAssignments.clear()
+            transformedExpressions.clear()
+        }
+
+        private void addAssignment(Map<String, List<BinaryExpression>> assignments, String name, BinaryExpression bex) {
+            List<BinaryExpression> list = assignments[name]
+            if (list == null) {
+                list = new ArrayList<BinaryExpression>(1)
+                assignments[name] = list
+            }
+            list.add(bex)
+        }
+
+        // Binary expressions with the given variable on the left side.
+        public List<BinaryExpression> assignmentsOfVariable(String name) {
+            return variableAssignments[name] ?: Collections.<BinaryExpression> emptyList()
+        }
+
+        // Binary expressions with the given property on the left side.
+        public List<BinaryExpression> assignmentsOfProperty(String text) {
+            return propertyAssignments[text] ?: Collections.<BinaryExpression> emptyList()
         }
 
         // Defines declararion expressions
@@ -339,6 +395,12 @@ class OPAnalysisAST extends CompilationCustomizer {
         // Defines visit fields and expressions in the AST sytax tree
         @Override
         public void visitField(FieldNode node) {
+            transformField(node)
+            super.visitField(node);
+        }
+
+        // Rewrite the initial expression of a field before it is visited.
+        public void transformField(FieldNode node) {
             ClassNode classNode = node.getOwner();
             if (node.isStatic()) {
                 Expression initialExpression = node.getInitialExpression()
@@ -379,8 +441,6 @@ class OPAnalysisAST extends CompilationCustomizer {
                     logTransformationError(node, e)
                 }
             }
-
-            super.visitField(node);
         }
 
 
@@ -544,19 +604,26 @@ class OPAnalysisAST extends CompilationCustomizer {
         List<String> usedComds
         Map attrSubs
         int globalBodyEntries = 0
-        ArrayList<DeclarationExpression> alldexprs
-        ArrayList<BinaryExpression> allbexprs
+
+        // Declarations and binary expressions are collected during the same walk. Binary
+        // expressions nested in another binary expression are not collected.
+        MethodCodeVisitor declarations = new MethodCodeVisitor()
+        MethodCodeVisitor scriptBody
+        int binaryDepth = 0
+
+        // Variable and property arguments of input calls refer to assignments that may come
+        // later in the walk, so they are resolved once the walk is complete.
+        List<Expression> deferredInputArgs = new ArrayList<Expression>()
 
         boolean usesAddChildDevice
         boolean usesOAuth
         boolean usesSendSms
         boolean usesInternet
 
-        Lexicon lexicon = Lexicon.getDefaultLexicon()
-        NLGFactory nlgFactory = new NLGFactory(lexicon)
-        Realiser realiser = new Realiser(lexicon)
+        // The apis of the sensitive API rules the app's calls matched, in the order of the rules.
+        Set<String> sensitiveApis
 
-        public InsnVisitor(ArrayList<DeclarationExpression> alldex, ArrayList<BinaryExpression> allbex) {
+        public InsnVisitor() {
             calledMethods = new HashSet<String>()
             calledProps = new HashSet<String>()
             requestedCaps = new HashSet<String>()
@@ -575,14 +642,15 @@ class OPAnalysisAST extends CompilationCustomizer {
             usesOAuth = false
             usesSendSms = false
             usesInternet = false
-
-            alldexprs = alldex
-            allbexprs = allbex
+            sensitiveApis = new LinkedHashSet<String>()
         }
 
         @Override
         void visitMethodCallExpression(MethodCallExpression mce) {
-            println mce.getMethodAsString()
+            checkpoint()
+
+            if (Trace.VISITOR >= Trace.TRACE)
+                Trace.trace(Trace.CAT_VISITOR, "method call: %s", mce.getMethodAsString())
 
             def methText
 
@@ -663,19 +731,7 @@ class OPAnalysisAST extends CompilationCustomizer {
                         // Collect requested capability names from the App.
                         if (txt.contains("capability.")) {
                             requestedCaps.add(txt)
-                            if (Cap_Map.containsKey(requestedCaps)) {
-                                SPhraseSpec capInfo = nlgFactory.createClause()
-                                capInfo.setSubject("The App")
-                                capInfo.setVerb("request")
-                                capInfo.setObject(requestedCaps.toString())
-                                String capMsg = realiser.realiseSentence(capInfo)
-                            }
-                            SPhraseSpec capInfo = nlgFactory.createClause()
-                            capInfo.setSubject("The App")
-                            capInfo.setVerb("request")
-                            capInfo.setObject(requestedCaps.toString())
-                            String capMsg = realiser.realiseSentence(capInfo)
-                            securityDes.add(capMsg)
+                            describe("request", requestedCaps)
                         } else if (txt.contains("mode")) {
                             // Collect requested mode information from the App.
                             usedModes.add(txt)
@@ -693,88 +749,10 @@ class OPAnalysisAST extends CompilationCustomizer {
                     } else if (arg instanceof MapExpression ||
                             arg instanceof VariableExpression ||
                             arg instanceof PropertyExpression) {
-                        MapExpression mex = null
-
-                        if (arg instanceof PropertyExpression) {
-                            def property = ((PropertyExpression) arg).getText()
-
-                            // Search through the collected binary expressions from AST.
-                            allbexprs.each { bexpr ->
-                                if (bexpr.getLeftExpression() instanceof PropertyExpression) {
-                                    def leftProperty = (PropertyExpression) bexpr.getLeftExpression()
-                                    if (leftProperty.getText().equals(property)) {
-                                        if (bexpr.getRightExpression() instanceof ConstantExpression) {
-                                            def right = (ConstantExpression) bexpr.getRightExpression()
-                                            def rightText = right.getText()
-                                            println "followed a Binary Property Constant expression"
-                                            println rightText + " is assigned to " + leftProperty.getText()
-                                            if (rightText.contains("capability."))
-                                                requestedCaps.add(rightText.toLowerCase())
-                                        }
-                                    }
-                                }
-                            }
-                        } else if (arg instanceof VariableExpression) {
-                            // Search through the AST once to find the DeclarationExpression
-                            // for this VariableExpression.
-                            VariableExpression argvex = (VariableExpression) arg
-                            def varName = argvex.getName()
-
-                            for (BinaryExpression bexp in allbexprs) {
-
-                                // Handle input map variable.
-                                if (bexp.getRightExpression() instanceof MapExpression) {
-                                    if (bexp.getLeftExpression() instanceof VariableExpression) {
-
-                                        // Case 1: the left is a Variable, right is a Map.
-                                        def testVarName = ((VariableExpression) bexp.getLeftExpression()).getName()
-                                        if (testVarName.equals(varName)) {
-                                            mex = (MapExpression) bexp.getRightExpression()
-                                            break
-                                        }
-                                    }
-                                } else if (bexp.getRightExpression() instanceof ConstantExpression) {
-                                    if (bexp.getLeftExpression() instanceof VariableExpression) {
-
-                                        // Case 2: the left is a Variable, right is a constant.
-                                        def testVarName = ((VariableExpression) bexp.getLeftExpression()).getName()
-                                        if (testVarName.equals(varName)) {
-                                            def txt = bexp.getRightExpression().getText()?.toLowerCase()
-                                            if (txt.contains("capability.")) {
-                                                requestedCaps.add(txt.toLowerCase())
-                                                SPhraseSpec capInfo = nlgFactory.createClause()
-                                                capInfo.setSubject("The App")
-                                                capInfo.setVerb("request")
-                                                capInfo.setObject(requestedCaps)
-                                                String capMsg = realiser.realiseSentence(capInfo)
-                                                securityDes.add(capMsg)
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        } else
-                            mex = (MapExpression) arg
-
-                        mex?.mapEntryExpressions.each { inner ->
-
-                            def keyExpr = inner.getKeyExpression()
-                            def valExpr = inner.getValueExpression()
-
-                            if (valExpr instanceof ConstantExpression) {
-                                ConstantExpression cap_exp = (ConstantExpression) valExpr
-                                def txt = cap_exp.getText()?.toLowerCase()
-                                if (txt.contains("capability.")) {
-                                    requestedCaps.add(txt)
-                                    SPhraseSpec capInfo = nlgFactory.createClause()
-                                    capInfo.setSubject("The App")
-                                    capInfo.setVerb("request")
-                                    capInfo.setObject(requestedCaps.toString())
-                                    String capMsg = realiser.realiseSentence(capInfo)
-                                    securityDes.add(capMsg)
-                                }
-                            }
-                        }
+                        if (arg instanceof MapExpression)
+                            requestInputArgument(arg)
+                        else
+                            deferredInputArgs.add(arg)
                     } else if (arg instanceof NamedArgumentListExpression) {
                         NamedArgumentListExpression nnale = (NamedArgumentListExpression) arg
                         nnale?.mapEntryExpressions.each { inner ->
@@ -787,12 +765,7 @@ class OPAnalysisAST extends CompilationCustomizer {
                                 def txt = cap_exp.getText()?.toLowerCase()
                                 if (txt.contains("capability.")) {
                                     requestedCaps.add(txt)
-                                    SPhraseSpec capInfo = nlgFactory.createClause()
-                                    capInfo.setSubject("The App")
-                                    capInfo.setVerb("request")
-                                    capInfo.setObject(requestedCaps.toString())
-                                    String capMsg = realiser.realiseSentence(capInfo)
-                                    securityDes.add(capMsg)
+                                    describe("request", requestedCaps)
                                 }
                             }
                         }
@@ -839,7 +812,8 @@ class OPAnalysisAST extends CompilationCustomizer {
                                 requestedCaps.add(theReqCap)
                                 declaredCapVars.add(theDecCapVar)
 
-                                println theDecCapVar + "," + theReqCap
+                                if (Trace.VISITOR >= Trace.DEBUG)
+                                    Trace.debug(Trace.CAT_VISITOR, "input %s requests %s", theDecCapVar, theReqCap)
 
                                 cexp.clear()
                             }
@@ -872,7 +846,8 @@ class OPAnalysisAST extends CompilationCustomizer {
                                 requestedCaps.add(theReqCap)
                                 declaredCapVars.add(theDecCapVar)
 
-                                println theDecCapVar + "," + theReqCap
+                                if (Trace.VISITOR >= Trace.DEBUG)
+                                    Trace.debug(Trace.CAT_VISITOR, "input %s requests %s", theDecCapVar, theReqCap)
 
                                 cexp.clear()
                             }
@@ -977,12 +952,7 @@ class OPAnalysisAST extends CompilationCustomizer {
                     if (args[0] instanceof ConstantExpression) {
                         ConstantExpression cexp = (ConstantExpression) args[0]
                         usedAttrs.add(cexp.getText()?.toLowerCase())
-                        SPhraseSpec attrInfo = nlgFactory.createClause()
-                        attrInfo.setSubject("The App")
-                        attrInfo.setVerb("use")
-                        attrInfo.setObject(usedAttrs.toString())
-                        String attrMsg = realiser.realiseSentence(attrInfo)
-                        securityDes.add(attrMsg)
+                        describe("use", usedAttrs)
                     } else {
                         log.append mce.getMethodAsString() + ", argument not a Constant Expression!"
                         this.append_manual()
@@ -999,12 +969,7 @@ class OPAnalysisAST extends CompilationCustomizer {
                     if (args[0] instanceof ConstantExpression) {
                         ConstantExpression cexp = (ConstantExpression) args[0]
                         usedAttrs.add(cexp.getText()?.toLowerCase())
-                        SPhraseSpec attrInfo = nlgFactory.createClause()
-                        attrInfo.setSubject("The App")
-                        attrInfo.setVerb("use")
-                        attrInfo.setObject(usedAttrs.toString())
-                        String attrMsg = realiser.realiseSentence(attrInfo)
-                        securityDes.add(attrMsg)
+                        describe("use", usedAttrs)
                     } else {
                         log.append mce.getMethodAsString() + ", argument not a Constant Expression!"
                         this.append_manual()
@@ -1025,69 +990,127 @@ class OPAnalysisAST extends CompilationCustomizer {
                 }
             }
 
-            // Filter out possible reflection call.
-            if (methText.contains("\$")) {
-                def args = mce.getArguments()
-                if (args.toList().size() > 0) {
-                    log.append "Reflective call: " + methText + ", count:" + args.toList().size()
-                    SPhraseSpec methInfo = nlgFactory.createClause()
-                    methInfo.setSubject("The App")
-                    methInfo.setVerb("invoke")
-                    methInfo.setObject("reflective method call")
-                    String methMsg = realiser.realiseSentence(methInfo)
-                    securityDes.add(methMsg)
-                }
-            }
+            // Reflective calls, child devices, SMS, OAuth and Internet uses (see SensitiveApiRules).
+            apiRules.classify(methText).each { SensitiveApiRules.Rule rule -> useSensitiveApi(rule, methText, mce) }
 
-            // Add child devices gives the SmartApp access to a device handler without using
-            // an input statement is also a case with over-privileged.
-            if (methText.contains("addChildDevice")) {
-                usesAddChildDevice = true
-                SPhraseSpec methInfo = nlgFactory.createClause()
-                methInfo.setSubject("The App")
-                methInfo.setVerb("add")
-                methInfo.setObject("child device")
-                String methMsg = realiser.realiseSentence(methInfo)
-                securityDes.add(methMsg)
-            }
+            super.visitMethodCallExpression(mce)
+        }
 
-            if (methText.contains("sendSms") || methText.contains("sendSmsMessage")) {
-                usesSendSms = true
-                SPhraseSpec methInfo = nlgFactory.createClause()
-                methInfo.setSubject("The App")
-                methInfo.setVerb("send")
-                methInfo.setObject("SMS Messages")
-                String methMsg = realiser.realiseSentence(methInfo)
-                securityDes.add(methMsg)
+        // Record a call of a sensitive API. The apis of the visitor's flags are known, a rule
+        // with any other api is only described and listed in sensitiveApis.
+        void useSensitiveApi(SensitiveApiRules.Rule rule, String methText, MethodCallExpression mce) {
+            switch (rule.api) {
+                case "reflection":
+                    // Filter out possible reflection call.
+                    int count = mce.getArguments().toList().size()
+                    if (count == 0)
+                        return
+                    log.append "Reflective call: " + methText + ", count:" + count
+                    break
+                case "childDevice":
+                    // Add child devices gives the SmartApp access to a device handler without
+                    // using an input statement is also a case with over-privileged.
+                    usesAddChildDevice = true
+                    break
+                case "sms":
+                    usesSendSms = true
+                    break
+                case "oauth":
+                    usesOAuth = true
+                    break
+                case "internet":
+                    usesInternet = true
+                    break
             }
 
-            if (methText.contains("mappings")) {
-                usesOAuth = true
-                SPhraseSpec methInfo = nlgFactory.createClause()
-                methInfo.setSubject("The App")
-                methInfo.setVerb("establish")
-                methInfo.setObject("OAuth Connection")
-                String methMsg = realiser.realiseSentence(methInfo)
-                securityDes.add(methMsg)
-            }
+            sensitiveApis.add(rule.api)
+            describe(rule.verb, rule.object)
+        }
 
-            if (methText.contains("httpDelete") ||
-                    methText.contains("httpGet") ||
-                    methText.contains("httpHead") ||
-                    methText.contains("httpPost") ||
-                    methText.contains("httpPostJson") ||
-                    methText.contains("httpPut") ||
-                    methText.contains("httpPutJson")) {
-                usesInternet = true
-                SPhraseSpec methInfo = nlgFactory.createClause()
-                methInfo.setSubject("The App")
-                methInfo.setVerb("use")
-                methInfo.setObject("Internet")
-                String methMsg = realiser.realiseSentence(methInfo)
-                securityDes.add(methMsg)
+        // Collect the capabilities requested by a map argument of input, or by the map or
+        // constant assigned to a variable or property argument.
+        void requestInputArgument(Expression arg) {
+            MapExpression mex = null
+
+            if (arg instanceof PropertyExpression) {
+                def property = ((PropertyExpression) arg).getText()
+
+                // Look up the binary expressions that assign to this property.
+                declarations.assignmentsOfProperty(property).each { bexpr ->
+                    def leftProperty = (PropertyExpression) bexpr.getLeftExpression()
+                    if (bexpr.getRightExpression() instanceof ConstantExpression) {
+                        def right = (ConstantExpression) bexpr.getRightExpression()
+                        def rightText = right.getText()
+                        if (Trace.VISITOR >= Trace.DEBUG)
+                            Trace.debug(Trace.CAT_VISITOR, "followed a binary property constant expression: %s is assigned to %s",
+                                    rightText, leftProperty.getText())
+                        if (rightText.contains("capability."))
+                            requestedCaps.add(rightText.toLowerCase())
+                    }
+                }
+            } else if (arg instanceof VariableExpression) {
+                // Look up the DeclarationExpression (or other assignment) for this
+                // VariableExpression.
+                VariableExpression argvex = (VariableExpression) arg
+                def varName = argvex.getName()
+
+                for (BinaryExpression bexp in declarations.assignmentsOfVariable(varName)) {
+
+                    // Handle input map variable.
+                    if (bexp.getRightExpression() instanceof MapExpression) {
+
+                        // Case 1: the left is a Variable, right is a Map.
+                        mex = (MapExpression) bexp.getRightExpression()
+                        break
+                    } else if (bexp.getRightExpression() instanceof ConstantExpression) {
+
+                        // Case 2: the left is a Variable, right is a constant.
+                        def txt = bexp.getRightExpression().getText()?.toLowerCase()
+                        if (txt.contains("capability.")) {
+                            requestedCaps.add(txt.toLowerCase())
+                            describe("request", requestedCaps)
+                        }
+                    }
+                }
+            } else
+                mex = (MapExpression) arg
+
+            mex?.mapEntryExpressions.each { inner ->
+
+                def keyExpr = inner.getKeyExpression()
+                def valExpr = inner.getValueExpression()
+
+                if (valExpr instanceof ConstantExpression) {
+                    ConstantExpression cap_exp = (ConstantExpression) valExpr
+                    def txt = cap_exp.getText()?.toLowerCase()
+                    if (txt.contains("capability.")) {
+                        requestedCaps.add(txt)
+                        describe("request", requestedCaps)
+                    }
+                }
             }
+        }
 
-            super.visitMethodCallExpression(mce)
+        // Add a sentence about the App to its security description, if descriptions are wanted.
+        void describe(String verb, Object object) {
+            if (!describeApps)
+                return
+
+            String msg = realise(verb, object.toString())
+            securityDes.add(msg)
+            record?.descriptions?.add(msg)
+        }
+
+        void resolveDeferredInputs() {
+            deferredInputArgs.each { arg -> requestInputArgument(arg) }
+            deferredInputArgs.clear()
+        }
+
+        // Drop the AST nodes collected during the walk. The facts of the app are extracted by
+        // then, and the nodes would keep the whole AST of the app reachable.
+        void releaseAst() {
+            declarations.releaseAst()
+            deferredInputArgs.clear()
         }
 
         public List getSubscriptionAttrs() {
@@ -1105,7 +1128,8 @@ class OPAnalysisAST extends CompilationCustomizer {
 
                 usedAttrs.each {
 
-                    println "Matched Found!" + usedAttrs.toString()
+                    if (Trace.PERMISSIONS >= Trace.DEBUG)
+                        Trace.debug(Trace.CAT_PERMISSIONS, "matched subscription attributes: %s", usedAttrs)
 
                     Attr_Map.findAll {
                         it.key == usedAttrs
@@ -1114,28 +1138,32 @@ class OPAnalysisAST extends CompilationCustomizer {
                     }
                 }
 
-                println "Processed Matched Attr: " + matchAttrs.toString()
+                if (Trace.PERMISSIONS >= Trace.DEBUG)
+                    Trace.debug(Trace.CAT_PERMISSIONS, "processed matched attributes: %s", matchAttrs)
 
                 String attrDes = matchAttrs.toString()
 
-                SPhraseSpec attrInfo = nlgFactory.createClause()
-                attrInfo.setSubject("The App")
-                attrInfo.setVerb("has sensitive device subscription: ")
-                attrInfo.setObject(attrDes.substring(1, attrDes.length() - 1))
-                String subscribeInfo = realiser.realiseSentence(attrInfo)
-                println "!--> Subscribe Info: " + subscribeInfo
+                if (describeApps) {
+                    String subscribeInfo = realise("has sensitive device subscription: ",
+                            attrDes.substring(1, attrDes.length() - 1))
+                    record?.descriptions?.add(subscribeInfo)
+                    if (Trace.NLG >= Trace.INFO)
+                        Trace.info(Trace.CAT_NLG, "subscribe info: %s", subscribeInfo)
+                }
             } else {
 
                 String attrDes = matchAttrs.toString()
 
-                SPhraseSpec attrInfo = nlgFactory.createClause()
-                attrInfo.setSubject("The App")
-                attrInfo.setVerb("has less sensitive device subscription: ")
-                attrInfo.setObject(attrDes.substring(1, attrDes.length() - 1))
-                String subscribeInfo = realiser.realiseSentence(attrInfo)
-                println "!--> Subscribe Info: " + subscribeInfo
+                if (describeApps) {
+                    String subscribeInfo = realise("has less sensitive device subscription: ",
+                            attrDes.substring(1, attrDes.length() - 1))
+                    record?.descriptions?.add(subscribeInfo)
+                    if (Trace.NLG >= Trace.INFO)
+                        Trace.info(Trace.CAT_NLG, "subscribe info: %s", subscribeInfo)
+                }
 
-                println "The App has no subscription."
+                if (Trace.PERMISSIONS >= Trace.DEBUG)
+                    Trace.debug(Trace.CAT_PERMISSIONS, "the app has no sensitive subscription")
             }
 
             return usedAttrs
@@ -1161,8 +1189,6 @@ class OPAnalysisAST extends CompilationCustomizer {
         @Override
         void visitMethod(MethodNode meth) {
 
-            MethodCodeVisitor mcv = new MethodCodeVisitor()
-
             String returnType = meth.getReturnType().getName()
             String methName = meth.getName()
 
@@ -1171,12 +1197,53 @@ class OPAnalysisAST extends CompilationCustomizer {
 
                 assert globalBodyEntries == 1
 
-                meth.getCode()?.visit(mcv)
+                // The declarations of the script body are its global variables.
+                scriptBody = new MethodCodeVisitor()
+                try {
+                    super.visitMethod(meth)
+                } finally {
+                    declaredGlobalVars = scriptBody.globals
+                    scriptBody = null
+                }
+            } else
+                super.visitMethod(meth)
+        }
+
+        @Override
+        void visitField(FieldNode node) {
+            declarations.transformField(node)
+            super.visitField(node)
+        }
+
+        @Override
+        void visitBinaryExpression(BinaryExpression bex) {
+            if (binaryDepth == 0) {
+                declarations.visitBinaryExpression(bex)
+                scriptBody?.visitBinaryExpression(bex)
+            }
+
+            binaryDepth += 1
+            try {
+                super.visitBinaryExpression(bex)
+            } finally {
+                binaryDepth -= 1
+            }
+        }
 
-                declaredGlobalVars = mcv.globals
+        @Override
+        void visitDeclarationExpression(DeclarationExpression dex) {
+            if (binaryDepth == 0) {
+                declarations.visitDeclarationExpression(dex)
+                scriptBody?.visitDeclarationExpression(dex)
             }
 
-            super.visitMethod(meth)
+            // The collectors above already recorded the declaration as a binary expression.
+            binaryDepth += 1
+            try {
+                super.visitDeclarationExpression(dex)
+            } finally {
+                binaryDepth -= 1
+            }
         }
 
         @Override
@@ -1189,6 +1256,8 @@ class OPAnalysisAST extends CompilationCustomizer {
         file.splitEachLine(",") { fields ->
             allCommands[fields[1]?.toLowerCase()] = fields[3]?.toLowerCase()
             allProps[fields[1]?.toLowerCase()] = fields[2]?.toLowerCase()
+
+            capIndex.addCapability(fields[1]?.toLowerCase(), fields[3]?.toLowerCase(), fields[2]?.toLowerCase())
         }
 
         allCommands.each { k, v ->
@@ -1203,14 +1272,30 @@ class OPAnalysisAST extends CompilationCustomizer {
             values?.each { allPropsList.add(it.toLowerCase()) }
         }
 
-        println "All commands:" + allCommandsList.size()
-        println "All attributes:" + allPropsList.size()
+        if (Trace.LOADER >= Trace.INFO)
+            Trace.info(Trace.CAT_LOADER, "loaded %d commands and %d attributes", allCommandsList.size(), allPropsList.size())
+    }
+
+    def loadSensitiveApiRules(File file) {
+        useApiRules(SensitiveApiRules.load(file))
+    }
+
+    def useApiRules(SensitiveApiRules rules) {
+        apiRules = rules
+
+        Cap_Map = rules.descriptionTable("capability")
+        Sen_Com_Map = rules.descriptionTable("sensitiveCommand")
+        Less_Com_Map = rules.descriptionTable("lessSensitiveCommand")
+        Sub_Map = rules.descriptionTable("subscription")
+        Attr_Map = rules.descriptionTable("attribute")
     }
 
     def loadCapRefAll(def file) {
         file.splitEachLine(",") { fields ->
             allCommands[fields[0]?.toLowerCase()] = fields[2]?.toLowerCase()
             allProps[fields[0]?.toLowerCase()] = fields[1]?.toLowerCase()
+
+            capIndex.addCapability(fields[0]?.toLowerCase(), fields[2]?.toLowerCase(), fields[1]?.toLowerCase())
         }
 
         allCommands.each { k, v ->
@@ -1225,8 +1310,9 @@ class OPAnalysisAST extends CompilationCustomizer {
             values?.each { allPropsList.add(it.toLowerCase()) }
         }
 
-        println "all commands full:" + allCommandsList.size()
-        println "all attrs full:" + allPropsList.size()
+        if (Trace.LOADER >= Trace.INFO)
+            Trace.info(Trace.CAT_LOADER, "loaded %d commands and %d attributes (full reference)", allCommandsList.size(),
+                    allPropsList.size())
     }
 
     // Load capability to device list from file.
@@ -1254,9 +1340,28 @@ class OPAnalysisAST extends CompilationCustomizer {
             copyFields.each { cap -> listOfCaps.add(cap.toLowerCase()) }
 
             dev2cap[devname] = listOfCaps
+            capIndex.addDevice(devname, listOfCaps)
         }
     }
 
+    // Load the three tables from a compiled capability database, with the same capability index
+    // and device tables as loadCapRefAll(), loadCap2Dev() and loadDev2Cap(). The device tables
+    // are looked up in the mapped database; the maps and lists of the capability reference are
+    // not filled, the analysis only uses the capability index.
+    def loadCapabilityDatabase(CapabilityDatabase db) {
+        db.eachCapability { String cap, String attrs, String commands, List<String> attrList, List<String> commandList ->
+            capIndex.addSplitCapability(cap, commands != null ? commandList : null, attrs != null ? attrList : null)
+        }
+
+        cap2dev = db.cap2devTable
+        dev2cap = db.dev2capTable
+        db.eachDev2Cap { String device, List<String> caps -> capIndex.addDevice(device, caps) }
+
+        if (Trace.LOADER >= Trace.INFO)
+            Trace.info(Trace.CAT_LOADER, "loaded %d commands and %d attributes (capability database)", capIndex.commandNames.size(),
+                    capIndex.attrNames.size())
+    }
+
     // Find out unique combination of used capabilities.
     def comb_test(s) {
         def input = new LinkedHashMap<String, Vector<String>>()
@@ -1264,8 +1369,8 @@ class OPAnalysisAST extends CompilationCustomizer {
         input.put("c2", new Vector<String>(Arrays.asList("d4", "d5", "d6")))
         input.put("c3", new Vector<String>(Arrays.asList("d7", "d8")))
 
-        Utils.allUniqueCombinations(input).each { comb ->
-            println Arrays.toString(comb)
+        Utils.uniqueCombinations(input).each { comb ->
+            println comb
         }
     }
 
@@ -1286,110 +1391,140 @@ class OPAnalysisAST extends CompilationCustomizer {
         log.append "numOAuth: " + numOAuth
         log.append "numInternet: " + numInternet
 
-    }
+        if (numCancelled > 0)
+            log.append "cancelled apps: " + numCancelled
 
-    // Analyze permissions from declared methods.
-    def analyzePermissions(InsnVisitor insnVis, ArrayList<String> declaredMethods) {
-        def reqCaps = insnVis.requestedCaps.intersect(allCapsList)
-        Map supportedCapDevs = new HashMap()
+        log.flush()
 
-        reqCaps.each { cap ->
-            //find out which devices support this cap
-            def devicesForCap = cap2dev[cap]
-            supportedCapDevs[cap] = devicesForCap
-        }
+        // The use of the memo depends on the order the threads or shards took the apps in, so it
+        // is not part of the output file.
+        if (Trace.PERMISSIONS >= Trace.INFO)
+            Trace.info(Trace.CAT_PERMISSIONS, "type2 memo: %d hits, %d misses", type2Memo.hits.get(), type2Memo.misses.get())
 
-        def rawCaps = new LinkedHashMap<String, Vector<String>>()
+        if (metrics != null) {
+            metrics.setType2Memo(type2Memo.hits.get(), type2Memo.misses.get())
+            metrics.write()
+            print metrics.slowestReport()
+        }
+    }
 
-        //basically indicates how many different types of device handlers (and hence devices) a setup might have
-        def cutoff = 5
-        def cutoff_caps = 8
+    // Analyze permissions from declared methods, calledCmdAttr is what processApp() returned for the App.
+    def analyzePermissions(InsnVisitor insnVis, ArrayList<String> declaredMethods, def calledCmdAttr) {
+        BitSet reqCapBits = capIndex.catalogCapBits(insnVis.requestedCaps)
 
-        //second stage cutoff. if we have too many caps in an app, we need to reduce cutoff value
-        if (supportedCapDevs.keySet()?.size() > cutoff_caps)
-            cutoff = 2
+        if (Trace.PERMISSIONS >= Trace.DEBUG)
+            Trace.debug(Trace.CAT_PERMISSIONS, "program analysis completed: %s", record?.name)
 
-        supportedCapDevs.each { cap, listOfDevs ->
+        // Determine what permissions the App actually uses.
+        BitSet calledCmdBits = capIndex.commandBits(calledCmdAttr[0])
+        BitSet calledAttrBits = capIndex.attrBits(calledCmdAttr[1])
 
-            if (listOfDevs != null) {
-                def size = listOfDevs.size()
+        BitSet unusedBits = capIndex.unusedCaps(calledCmdBits, calledAttrBits)
 
-                if (size > cutoff)
-                    size = cutoff
+        // An app that requests no capability has no devices to choose.
+        if (reqCapBits.isEmpty())
+            return
 
-                //we try to always compute minimal bound on overprivilege
-                //so when selecting which devices when pruning the list of devices
-                //we select devices that implement the minimum number of capabilities
-                rawCaps.put(cap, selectMinimalDevicesOfSize(listOfDevs, size - 1))
-            }
+        // Apps that request the same capabilities and leave the same ones unused share the result,
+        // only the app that searched it gets the time of the search.
+        boolean searched = false
+        Type2Memo.Entry type2 = type2Memo.get(reqCapBits, unusedBits) {
+            searched = true
+            long start = System.nanoTime()
+            Type2Memo.Entry solved = searchType2(reqCapBits, unusedBits)
+            record?.type2SolveNanos = System.nanoTime() - start
+            return solved
         }
+        record?.type2Memoized = !searched
 
-        def allUniqueCombs = Utils.allUniqueCombinations(rawCaps).toList()
-        def hdrCaps = allUniqueCombs[0]
-        allUniqueCombs.remove(0)
+        if (type2.devices == null)
+            return
 
-        println "---> The program analysis is completed successfully."
+        record?.type2Optimum = type2.optimum
 
-        // Determine what permissions the App actually uses.
-        def calledCmdAttr = getCalledMethodsProps(insnVis)
-        def calledMethods = calledCmdAttr[0]
-        def calledProps = calledCmdAttr[1]
-        def subAttrs = calledCmdAttr[2]
-        def reqCmdAttrs = getCmdAttr(reqCaps)
-        def reqCmds = reqCmdAttrs[0]
-        def reqAttrs = reqCmdAttrs[1]
-        def comb2overpriv = new ArrayList()
-
-        // For each possible combinations, compute the final set of used capabilities in the App
-        // and then get the set of unused capabilities, which then considered over-privileged.
-        allUniqueCombs.each { auc ->
-            def univOfCapsAtThisPoint = new ArrayList()
-            auc.each { aDevice ->
-                univOfCapsAtThisPoint.addAll(dev2cap[aDevice])
-            }
+        if (type2.unusedCaps.size() > 0) {
 
-            // println "Analyzing capability combination: " + Arrays.toString(auc)
+            log.append "type2 overprivilege unused caps:"
+            log.append "type2 driver combination: " + type2.devices
+            log.append Arrays.toString(type2.unusedCaps)
 
-            def allUniqueCapsAtPoint = univOfCapsAtThisPoint.toSet()
-            def type2OverprivCaps = new ArrayList()
+            record?.type2DriverCombination = type2.devices.toList()
+            record?.type2UnusedCaps = type2.unusedCaps.toList()
 
-            allUniqueCapsAtPoint.each { ucap ->
-                def cmdsAttrs = getCmdAttr([ucap])
+            type2_numCaps += 1
+        }
 
-                def allCmds = cmdsAttrs[0].toSet()
-                def allAttrs = cmdsAttrs[1].toSet()
+    }
 
-                if (allCmds.intersect(calledMethods.toSet()).toList().size() == 0 &&
-                        allAttrs.intersect(calledProps.toSet()).toList().size() == 0 &&
-                        (allCmds.size() > 0 || allAttrs.size() > 0)) //there should be atleast some cmds/attrs
-                {
+    // Find the combination of one device per requested capability with the fewest unused
+    // capabilities.
+    private Type2Memo.Entry searchType2(BitSet reqCapBits, BitSet unusedBits) {
+        def reqCaps = capIndex.capNamesOf(reqCapBits)
+        Map supportedCapDevs = new HashMap()
 
-                    type2OverprivCaps.add(ucap)
-                } else {
-                    // In this case, the App uses some commands or attributes.
-                }
-            }
+        reqCaps.each { cap ->
+            //find out which devices support this cap
+            def devicesForCap = cap2dev[cap]
+            supportedCapDevs[cap] = devicesForCap
+        }
 
-            SimpleContainer sc = new SimpleContainer(auc, type2OverprivCaps)
-            comb2overpriv.add(sc)
+        def rawCaps = new LinkedHashMap<String, List<String>>()
+
+        supportedCapDevs.each { cap, listOfDevs ->
+
+            if (listOfDevs != null && listOfDevs.size() > 0) {
+                //we try to always compute minimal bound on overprivilege
+                //so we visit the devices that implement the minimum number of capabilities
+                //first, which gives the search a small bound early on
+                rawCaps.put(cap, selectMinimalDevicesOfSize(listOfDevs, listOfDevs.size() - 1))
+            }
+        }
 
+        // For every candidate device keep only the capabilities the App would not use.
+        List<List<BitSet>> candidateUnused = new ArrayList<List<BitSet>>()
+        rawCaps.values().each { devs ->
+            candidateUnused.add(devs.collect { dev -> unusedCapsOfDevice(dev, unusedBits) })
         }
 
         //Select the minimum amount of extraneous caps and report as the type 2 overprivilege for this app
+        Type2Solver.Result solution = new Type2Solver(watch).solve(candidateUnused)
 
-        comb2overpriv.sort { it -> it.two?.size() }
+        if (Trace.PERMISSIONS >= Trace.INFO)
+            Trace.info(Trace.CAT_PERMISSIONS, "type2 optimum of %s: %d unused caps in %.3f ms (%d nodes, %d dominated devices, %d memo hits)",
+                    record?.name, solution.optimum, solution.nanos / 1e6d, solution.nodes, solution.dominated, solution.memoHits)
 
-        def minOverprivCaps = comb2overpriv[0]
+        Type2Memo.Entry entry = new Type2Memo.Entry()
+        entry.optimum = solution.optimum
 
-        if (minOverprivCaps.two?.size() > 0) {
+        int[] minChoice = solution.choice
+        if (minChoice == null)
+            return entry
 
-            log.append "type2 overprivilege unused caps:"
-            log.append "type2 driver combination: " + minOverprivCaps.one
-            log.append Arrays.toString(minOverprivCaps.two)
+        List<List<String>> candidates = new ArrayList<List<String>>(rawCaps.values())
+        def minComb = new ArrayList<String>()
+        for (int i = 0; i < minChoice.length; i++)
+            minComb.add(candidates[i][minChoice[i]])
 
-            type2_numCaps += 1
+        def univOfCapsAtThisPoint = new ArrayList()
+        minComb.each { aDevice ->
+            if (dev2cap[aDevice] != null)
+                univOfCapsAtThisPoint.addAll(dev2cap[aDevice])
         }
 
+        def type2OverprivCaps = new ArrayList()
+        univOfCapsAtThisPoint.toSet().each { ucap ->
+            if (unusedBits.get(capIndex.capId(ucap)))
+                type2OverprivCaps.add(ucap)
+        }
+
+        entry.devices = Collections.unmodifiableList(minComb)
+        entry.unusedCaps = Collections.unmodifiableList(type2OverprivCaps)
+        return entry
+    }
+
+    private BitSet unusedCapsOfDevice(String dev, BitSet unusedBits) {
+        BitSet devCaps = capIndex.deviceCaps[dev]
+        return devCaps != null ? devCaps & unusedBits : new BitSet()
     }
 
     // Sort the list of devices by number of capabilities implemented in the App
@@ -1407,7 +1542,8 @@ class OPAnalysisAST extends CompilationCustomizer {
         return devWithCount*.one[0..count]
     }
 
-    // Post-processing of App analysis results.
+    // Post-processing of App analysis results. Returns the called commands and attributes of the
+    // App (see getCalledMethodsProps()), for analyzePermissions().
     def processApp(InsnVisitor insnVis, ArrayList<String> declaredMethods) {
 
         def calledCmdAttr = getCalledMethodsProps(insnVis)
@@ -1415,45 +1551,59 @@ class OPAnalysisAST extends CompilationCustomizer {
         def calledProps = calledCmdAttr[1].toSet()
         def subAttrs = calledCmdAttr[2].toSet()
 
-        Lexicon lexicon = Lexicon.getDefaultLexicon()
-        NLGFactory nlgFactory = new NLGFactory(lexicon)
-        Realiser realiser = new Realiser(lexicon)
+        // The set arithmetic is done on capability, command and attribute ids.
+        BitSet reqCapBits = capIndex.catalogCapBits(insnVis.requestedCaps)
+        BitSet reqCmdBits = capIndex.commandsOf(reqCapBits)
+        BitSet reqAttrBits = capIndex.attrsOf(reqCapBits)
+        BitSet calledCmdBits = capIndex.commandBits(calledMethods)
+        BitSet calledAttrBits = capIndex.attrBits(calledProps)
 
-        def reqCaps = insnVis.requestedCaps.intersect(allCapsList)
+        def reqCaps = capIndex.capNamesOf(reqCapBits)
         def declaredGlobals = insnVis.declaredGlobalVars
 
         log.append "req caps: " + reqCaps.toSet()
         log.append "req cap size: " + reqCaps.size()
 
-        def reqCmdAttrs = getCmdAttr(reqCaps)
-        def reqCmds = reqCmdAttrs[0].toSet()
-        def reqAttrs = reqCmdAttrs[1].toSet()
+        def reqCmds = capIndex.commandNamesOf(reqCmdBits).toSet()
+        def reqAttrs = capIndex.attrNamesOf(reqAttrBits).toSet()
 
         log.append "requested commands:" + reqCmds
         log.append "requested attrs:" + reqAttrs
 
+        if (record != null) {
+            record.requestedCaps.addAll(reqCaps)
+            record.requestedCommands.addAll(reqCmds)
+            record.requestedAttrs.addAll(reqAttrs)
+            record.usesAddChildDevice |= insnVis.usesAddChildDevice
+            record.usesSendSms |= insnVis.usesSendSms
+            record.usesOAuth |= insnVis.usesOAuth
+            record.usesInternet |= insnVis.usesInternet
+            record.sensitiveApis.addAll(insnVis.sensitiveApis)
+        }
+
         //1. Handle cases when the App requests for no capabilities at all.
-        if (reqCmds.toList().size() == 0 && reqAttrs.toList().size() == 0)
-            return
+        if (reqCmdBits.isEmpty() && reqAttrBits.isEmpty())
+            return calledCmdAttr
 
         def reflIndex = calledMethods?.toList().any { v -> v?.contains("\$") }
         if (reflIndex) {
+            record?.usesReflection = true
             log.append "Dynamic Method Invocation"
             this.append_manual()
             numReflection += 1
         }
 
-        def sameNameCommands = allCommandsList.intersect(declaredMethods)
+        def sameNameCommands = capIndex.commandNamesOf(capIndex.commandBits(declaredMethods))
 
-        if (sameNameCommands.size() > 0 && (reqCmds.toList().size() > 0 || reqAttrs.toList().size() > 0)) {
+        if (sameNameCommands.size() > 0) {
             log.append "Some app-defined methods have the same name as known IoT commands:"
             this.append_manual()
             sameNameCommands.each { it -> log.append it }
         }
 
         //2. Compute the same thing for properties (attributes).
-        def sameNameAttrs = allPropsList.intersect(declaredGlobals)
-        if (sameNameAttrs.size() > 0 && (reqCmds.toList().size() > 0 || reqAttrs.toList().size() > 0)) {
+        def sameNameAttrs = capIndex.attrNamesOf(capIndex.attrBits(declaredGlobals))
+        if (sameNameAttrs.size() > 0) {
             log.append "Some app-defined globally-scoped properites have the same name as known IoT attributes:"
             this.append_manual()
             sameNameAttrs.each { it -> log.append it }
@@ -1462,14 +1612,20 @@ class OPAnalysisAST extends CompilationCustomizer {
         if (sameNameCommands.size() > 0 || sameNameAttrs.size() > 0)
             samename_flags += 1
 
-        def filteredCalledMethods = calledMethods.intersect(reqCmds)
-        def filteredCalledProps = calledProps.intersect(reqAttrs)
+        BitSet filteredCalledCmdBits = calledCmdBits & reqCmdBits
+        BitSet filteredCalledAttrBits = calledAttrBits & reqAttrBits
 
-        def filteredExtraneousCalledMethods = calledMethods.intersect(allCommandsList)
-        def filteredExtraneousCalledProps = calledProps.intersect(allPropsList)
+        def filteredCalledMethods = capIndex.commandNamesOf(filteredCalledCmdBits).toSet()
+        def filteredCalledProps = capIndex.attrNamesOf(filteredCalledAttrBits).toSet()
 
-        def type2Uses_Cmds = filteredExtraneousCalledMethods.toSet() - filteredCalledMethods.toSet()
-        def type2Uses_Attrs = filteredExtraneousCalledProps.toSet() - filteredCalledProps.toSet()
+        // Known commands and attributes the App uses without requesting their capability.
+        BitSet type2CmdBits = (BitSet) calledCmdBits.clone()
+        type2CmdBits.andNot(reqCmdBits)
+        BitSet type2AttrBits = (BitSet) calledAttrBits.clone()
+        type2AttrBits.andNot(reqAttrBits)
+
+        def type2Uses_Cmds = capIndex.commandNamesOf(type2CmdBits).toSet()
+        def type2Uses_Attrs = capIndex.attrNamesOf(type2AttrBits).toSet()
 
         if (insnVis.usesAddChildDevice) {
             log.append "addChildDevice usage"
@@ -1494,13 +1650,13 @@ class OPAnalysisAST extends CompilationCustomizer {
 
             log.append it
 
-            SPhraseSpec calledCapMethod = nlgFactory.createClause()
-            calledCapMethod.setSubject("The App")
-            calledCapMethod.setVerb("call")
-            calledCapMethod.setObject(it.toString())
-            String calledCapMethodMsg = realiser.realiseSentence(calledCapMethod)
+            if (describeApps) {
+                String calledCapMethodMsg = realise("call", it.toString())
+                record?.descriptions?.add(calledCapMethodMsg)
 
-            println "Called Method: " + calledCapMethodMsg
+                if (Trace.NLG >= Trace.INFO)
+                    Trace.info(Trace.CAT_NLG, "called method: %s", calledCapMethodMsg)
+            }
         }
 
         log.append "called cap-props by app"
@@ -1510,19 +1666,32 @@ class OPAnalysisAST extends CompilationCustomizer {
         subAttrs.toSet().each { log.append it }
 
         // Calculate over-privileged commands or attributes.
-        def cmdOverpriv = reqCmds.toSet() - filteredCalledMethods.toSet()
-        def attrOverpriv = (reqAttrs.toSet() - filteredCalledProps.toSet())
+        BitSet cmdOverprivBits = (BitSet) reqCmdBits.clone()
+        cmdOverprivBits.andNot(calledCmdBits)
+        BitSet attrOverprivBits = (BitSet) reqAttrBits.clone()
+        attrOverprivBits.andNot(calledAttrBits)
+
+        def cmdOverpriv = capIndex.commandNamesOf(cmdOverprivBits).toSet()
+        def attrOverpriv = capIndex.attrNamesOf(attrOverprivBits).toSet()
 
         log.append "cmd overpriv:" + cmdOverpriv
         log.append "attr overpriv:" + attrOverpriv
 
-        if (cmdOverpriv.toList().size() > 0)
+        if (record != null) {
+            record.calledMethods.addAll(filteredCalledMethods)
+            record.calledProps.addAll(filteredCalledProps)
+            record.subscriptionAttrs.addAll(subAttrs)
+            record.cmdOverpriv.addAll(cmdOverpriv)
+            record.attrOverpriv.addAll(attrOverpriv)
+        }
+
+        if (!cmdOverprivBits.isEmpty())
             numCmdOverpriv += 1
 
-        if (attrOverpriv.toList().size() > 0)
+        if (!attrOverprivBits.isEmpty())
             numAttrOverpriv += 1
 
-        if (cmdOverpriv.toList().size() > 0 || attrOverpriv.toList().size() > 0) {
+        if (!cmdOverprivBits.isEmpty() || !attrOverprivBits.isEmpty()) {
             numTotalOverpriv += 1
 
             log.append("This App has over-privileged requests.")
@@ -1539,6 +1708,8 @@ class OPAnalysisAST extends CompilationCustomizer {
         if (insnVis.usesInternet) {
             numInternet += 1
         }
+
+        return calledCmdAttr
     }
 
     // Analyze all requested attributes.
@@ -1547,7 +1718,7 @@ class OPAnalysisAST extends CompilationCustomizer {
         def reqCaps = insnVis.requestedCaps.toList()
 
         // Define attributes used via subscriptions (events).
-        def subAttrs = insnVis.getSubscriptionAttrs().toList()
+        def subAttrs = inPhase(AnalysisMetrics.SUBSCRIPTION_ATTRS) { insnVis.getSubscriptionAttrs() }.toList()
 
         if ("events" in calledMethods ||
                 "eventsBetween" in calledMethods ||
@@ -1607,17 +1778,10 @@ class OPAnalysisAST extends CompilationCustomizer {
         def cmds = new ArrayList()
         def attrs = new ArrayList()
 
+        // The commands and attributes were split once when the tables were loaded.
         caps.each { capname ->
-
-            def listOfCmds = allCommands[capname]
-
-            def values = listOfCmds?.split(" ")
-            values.each { cmds.add it }
-
-            def listOfAttrs = allProps[capname]
-
-            def values2 = listOfAttrs?.split(" ")
-            values2.each { attrs.add it }
+            cmds.addAll(capIndex.commandsOfCap(capname))
+            attrs.addAll(capIndex.attrsOfCap(capname))
         }
 
         def combined = [cmds, attrs]
@@ -0,0 +1,132 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.util.concurrent.ConcurrentHashMap
+
+// The sensitive APIs the instruction visitor flags and the description tables of the security
+// descriptions, loaded from sensitive_apis.csv. A line of the file is either a rule
+//
+//   api,<contains|equals>,<pattern>,<api>,<verb>,<object>
+//
+// which flags a method call whose name contains (or is) the pattern as a use of the api and
+// describes it as "The App <verb> <object>", or an entry of a description table
+//
+//   description,<table>,<key>,<text>
+//
+// Lines starting with # and empty lines are skipped. The rules are compiled into a hash table
+// of the equals patterns and an automaton of the contains patterns (see TokenAutomaton), and
+// the rules of every method name are kept once found, so a call is classified with one lookup.
+class SensitiveApiRules {
+
+    // Method names whose rules are kept, to bound the memory of large corpora. Beyond this the
+    // rules of further names are looked up every time.
+    static final int MAX_CACHED_NAMES = 1 << 16
+
+    static class Rule {
+        boolean exact
+        String pattern
+        String api
+        String verb
+        String object
+    }
+
+    final List<Rule> rules = new ArrayList<Rule>()
+    final Map<String, Map<String, String>> descriptions = new LinkedHashMap<String, Map<String, String>>()
+
+    private Map<String, List<Integer>> exactRules = new HashMap<String, List<Integer>>()
+    private List<Integer> containsRules = new ArrayList<Integer>()
+    private TokenAutomaton automaton = new TokenAutomaton([])
+
+    private final ConcurrentHashMap<String, List<Rule>> rulesOfName = new ConcurrentHashMap<String, List<Rule>>()
+
+    static SensitiveApiRules load(File file) {
+        SensitiveApiRules loaded = new SensitiveApiRules()
+
+        file.eachLine("UTF-8") { String line, int number ->
+            if (line.trim().isEmpty() || line.startsWith("#"))
+                return
+
+            List<String> fields = line.split(",", -1).toList()
+            if (fields[0] == "api" && fields.size() == 6 && fields[1] in ["contains", "equals"] && !fields[2].isEmpty()) {
+                Rule rule = new Rule()
+                rule.exact = fields[1] == "equals"
+                rule.pattern = fields[2]
+                rule.api = fields[3]
+                rule.verb = fields[4]
+                rule.object = fields[5]
+                loaded.rules.add(rule)
+            } else if (fields[0] == "description" && fields.size() == 4) {
+                if (!loaded.descriptions.containsKey(fields[1]))
+                    loaded.descriptions[fields[1]] = new LinkedHashMap<String, String>()
+                loaded.descriptions[fields[1]][fields[2]] = fields[3]
+            } else {
+                throw new IllegalArgumentException(file.getName() + ":" + number + ": not a rule or description: " + line)
+            }
+        }
+
+        loaded.compile()
+
+        if (Trace.LOADER >= Trace.INFO)
+            Trace.info(Trace.CAT_LOADER, "loaded %d sensitive API rules and %d description tables", loaded.rules.size(),
+                    loaded.descriptions.size())
+        return loaded
+    }
+
+    private void compile() {
+        List<String> tokens = new ArrayList<String>()
+
+        rules.eachWithIndex { Rule rule, int index ->
+            if (rule.exact) {
+                if (!exactRules.containsKey(rule.pattern))
+                    exactRules[rule.pattern] = new ArrayList<Integer>()
+                exactRules[rule.pattern].add(index)
+            } else {
+                containsRules.add(index)
+                tokens.add(rule.pattern)
+            }
+        }
+
+        automaton = new TokenAutomaton(tokens)
+        rulesOfName.clear()
+    }
+
+    // The rules a call of the method applies, in the order of the file and one per api.
+    List<Rule> classify(String methodName) {
+        if (methodName == null)
+            return []
+
+        List<Rule> found = rulesOfName.get(methodName)
+        if (found != null)
+            return found
+
+        BitSet matched = new BitSet()
+        BitSet tokens = automaton.find(methodName)
+        for (int t = tokens.nextSetBit(0); t >= 0; t = tokens.nextSetBit(t + 1))
+            matched.set(containsRules[t])
+        exactRules[methodName]?.each { int index -> matched.set(index) }
+
+        found = new ArrayList<Rule>()
+        Set<String> apis = new HashSet<String>()
+        for (int index = matched.nextSetBit(0); index >= 0; index = matched.nextSetBit(index + 1)) {
+            if (apis.add(rules[index].api))
+                found.add(rules[index])
+        }
+        found = Collections.unmodifiableList(found)
+
+        if (rulesOfName.size() < MAX_CACHED_NAMES)
+            rulesOfName.putIfAbsent(methodName, found)
+        return found
+    }
+
+    // The entries of a description table, empty when the file has none.
+    Map<String, String> descriptionTable(String table) {
+        return descriptions[table] ?: new LinkedHashMap<String, String>()
+    }
+}
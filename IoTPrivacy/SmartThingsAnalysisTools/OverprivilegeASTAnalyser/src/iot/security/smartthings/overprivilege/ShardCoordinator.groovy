@@ -0,0 +1,404 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+// Runs a corpus on several JVMs (AnalysisDriver --shards=N): the apps are split into N shards
+// by a stable hash of their path in the corpus, every shard is analyzed by a ShardWorker, and
+// the records of all shards are written in the order of the corpus, as if the run had been a
+// single process. The output file, the summary counters, the structured results and the
+// metrics are the same as those of a single-process run (the workers time the apps, the
+// coordinator the writing of their output).
+//
+// The workers are --workers=HOST:PORT,... (started on their hosts beforehand, with the token
+// file given as --worker-token-file=FILE), or else --local-workers=K JVMs (as many as there are
+// processors by default) that the coordinator starts with the analysis options of the run and
+// a new token, and stops at the end. Every shard connection starts with the token, see
+// ShardWorker. A shard whose worker fails
+// (the connection is lost, the JVM dies or an app cannot be analyzed) is run again on another
+// idle worker, up to --shard-retries=R (2) times. The failed worker gets no more shards: a
+// local worker is restarted, as a new JVM at the end of the idle workers, a worker on another
+// host is dropped for the rest of the run. The run fails when no worker is left.
+//
+// The corpus is read once: the apps of every shard are first spooled to a temporary file of the
+// shard, which the shard (and every retry of it) is sent from. The records of a shard are kept
+// in a temporary file as well, until all shards are done.
+class ShardCoordinator {
+
+    static final int DEFAULT_RETRIES = 2
+
+    // Analysis options the local workers are started with.
+    static final List<String> WORKER_OPTIONS = ["evaluate", "describe", "cache", "app-timeout",
+                                                "app-memory", "capdb", "recycle-every"]
+
+    // How long a local worker may take to load the tables and listen.
+    static final long WORKER_START_MILLIS = 120000
+
+    int shards
+    int retries = DEFAULT_RETRIES
+    CorpusSource corpus
+    AnalysisDriver.RunSettings settings
+
+    // Workers to start on this host (when no workers are given), and their options.
+    int localWorkers
+    List<String> workerOptions = []
+
+    File spoolDir
+    List<Endpoint> endpoints = new ArrayList<Endpoint>()
+
+    // The token of the workers, and the file it is given to local workers in.
+    AccessToken workerToken
+    File workerTokenFile
+
+    ShardCoordinator(CorpusSource source, int shardCount, AnalysisDriver.RunSettings runSettings) {
+        corpus = source
+        shards = shardCount
+        settings = runSettings
+    }
+
+    // A worker the shards are sent to. A local worker has its process, to restart it. A worker
+    // is no longer healthy when it failed and could not be restarted.
+    static class Endpoint {
+        String host
+        int port
+        Process process
+        File portFile
+        int id
+        volatile boolean healthy = true
+
+        String toString() {
+            return host + ":" + port
+        }
+    }
+
+    // Where the records of one shard were spooled, and the shard's use of the type-2 memo.
+    static class ShardResult {
+        int shard
+        File records
+        long memoHits
+        long memoMisses
+    }
+
+    // The shard of an app, by the CRC-32 of its path in the corpus, so an app stays in the same
+    // shard from run to run.
+    static int shardOf(String path, int shards) {
+        CRC32 crc = new CRC32()
+        crc.update(path.getBytes("UTF-8"))
+        return (int) (crc.getValue() % shards)
+    }
+
+    // Use the workers running at the given HOST:PORT addresses.
+    void addWorkers(String addresses) {
+        addresses.split(",").each { String address ->
+            int index = address.lastIndexOf(':')
+            Endpoint endpoint = new Endpoint()
+            endpoint.host = address.substring(0, index)
+            endpoint.port = address.substring(index + 1).toInteger()
+            endpoints.add(endpoint)
+        }
+    }
+
+    // The command line options of a local worker for the options of the run.
+    static List<String> workerOptions(Map options) {
+        return WORKER_OPTIONS.findAll { String name -> options[name] }.collect { String name ->
+            options[name] == "true" ? "--" + name : "--" + name + "=" + options[name]
+        }
+    }
+
+    // Analyze all shards, then write their records to the analyser's log and to the structured
+    // outputs of the run, in the order of the corpus.
+    void run(OPAnalysisAST opal) {
+        spoolDir = Files.createTempDirectory("overpriv-shards").toFile()
+        try {
+            startLocalWorkers()
+            List<File> apps = spoolShards()
+            List<ShardResult> results = analyzeShards(apps)
+            merge(results, opal)
+        } finally {
+            stopLocalWorkers()
+            spoolDir.deleteDir()
+        }
+    }
+
+    // Walk the corpus and write the apps of every shard to a file of the shard, as the messages
+    // that send them to a worker.
+    private List<File> spoolShards() {
+        List<File> files = (0..<shards).collect { int shard -> new File(spoolDir, "shard-" + shard + "-apps.jsonl") }
+        List<Writer> writers = files.collect { File file -> file.newWriter("UTF-8") }
+
+        try {
+            int index = 0
+            corpus.eachEntry { CorpusEntry entry ->
+                int appIndex = index++
+                if (settings.skips(entry)) {
+                    println "skipping ${entry.path} due to reflection manual analyses"
+                    return
+                }
+
+                Writer writer = writers[shardOf(entry.path, shards)]
+                writer.write(JsonOutput.toJson([index: appIndex, path: entry.path, source: Base64.getEncoder().encodeToString(entry.source)]))
+                writer.write('\n')
+            }
+        } finally {
+            writers.each { Writer writer -> writer.close() }
+        }
+        return files
+    }
+
+    private List<ShardResult> analyzeShards(List<File> apps) {
+        BlockingQueue<Endpoint> idle = new LinkedBlockingQueue<Endpoint>(endpoints)
+        ExecutorService pool = Executors.newFixedThreadPool(endpoints.size())
+        List<Future<ShardResult>> futures = new ArrayList<Future<ShardResult>>()
+
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                int theShard = shard
+                futures.add(pool.submit({ analyzeWithRetries(theShard, apps[theShard], idle) } as Callable<ShardResult>))
+            }
+
+            return futures.collect { Future<ShardResult> future ->
+                try {
+                    return future.get()
+                } catch (ExecutionException e) {
+                    throw e.getCause()
+                }
+            }
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    private ShardResult analyzeWithRetries(int shard, File apps, BlockingQueue<Endpoint> idle) {
+        for (int attempt = 0; ; attempt++) {
+            Endpoint endpoint = takeIdle(shard, idle)
+            File records = new File(spoolDir, "shard-" + shard + "-" + attempt + ".jsonl")
+            ShardResult result
+            try {
+                result = analyzeShard(shard, apps, endpoint, records)
+            } catch (Exception e) {
+                records.delete()
+
+                // Only a restarted local worker gets shards again, it goes behind the idle ones.
+                if (endpoint.process != null && restart(endpoint))
+                    idle.put(endpoint)
+                else
+                    endpoint.healthy = false
+
+                if (attempt >= retries)
+                    throw new IllegalStateException("shard " + shard + " failed " + (attempt + 1) + " times, last on " + endpoint, e)
+
+                println "shard ${shard} failed on ${endpoint}, retrying: ${e}"
+                continue
+            }
+
+            idle.put(endpoint)
+            println "shard ${shard} done on ${endpoint}"
+            return result
+        }
+    }
+
+    // The next idle worker, waiting while the healthy workers are busy. Fails when none of the
+    // workers is healthy anymore, no shard can be run then.
+    private Endpoint takeIdle(int shard, BlockingQueue<Endpoint> idle) {
+        while (true) {
+            Endpoint endpoint = idle.poll(1, TimeUnit.SECONDS)
+            if (endpoint != null)
+                return endpoint
+
+            if (!endpoints.any { Endpoint worker -> worker.healthy })
+                throw new IllegalStateException("shard " + shard + " cannot be analyzed, no healthy worker is left")
+        }
+    }
+
+    // Send the spooled apps of a shard to a worker, one at a time, and spool the records it answers.
+    private ShardResult analyzeShard(int shard, File apps, Endpoint endpoint, File records) {
+        Socket socket = new Socket(endpoint.host, endpoint.port)
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"))
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"))
+            JsonSlurper slurper = new JsonSlurper()
+
+            ShardResult result = new ShardResult()
+            result.shard = shard
+            result.records = records
+
+            records.withWriter("UTF-8") { Writer spool ->
+                send(writer, [shard: shard, token: workerToken.value, timings: settings.metrics != null])
+
+                apps.eachLine("UTF-8") { String app ->
+                    send(writer, app)
+                    String reply = receive(reader, slurper)
+                    spool.write(reply)
+                    spool.write('\n')
+                }
+
+                send(writer, [end: true])
+                Map end = (Map) slurper.parseText(receive(reader, slurper))
+                result.memoHits = ((Number) end.memoHits).longValue()
+                result.memoMisses = ((Number) end.memoMisses).longValue()
+            }
+            return result
+        } finally {
+            socket.close()
+        }
+    }
+
+    private static void send(Writer writer, Map message) {
+        send(writer, JsonOutput.toJson(message))
+    }
+
+    private static void send(Writer writer, String message) {
+        writer.write(message)
+        writer.write('\n')
+        writer.flush()
+    }
+
+    // The next line of the worker, an IOException when the worker failed.
+    private static String receive(BufferedReader reader, JsonSlurper slurper) {
+        String line = reader.readLine()
+        if (line == null)
+            throw new IOException("the worker closed the connection")
+        if (line.startsWith("{\"error\"")) {
+            Map error = (Map) slurper.parseText(line)
+            throw new IOException("the worker failed: " + error.error)
+        }
+        return line
+    }
+
+    // Write the records of all shards in the order of the corpus. Every shard file is in that
+    // order already, so the files are merged by the index of the app.
+    private void merge(List<ShardResult> results, OPAnalysisAST opal) {
+        JsonSlurper slurper = new JsonSlurper()
+        List<BufferedReader> readers = results.collect { ShardResult result -> result.records.newReader("UTF-8") }
+
+        try {
+            PriorityQueue<Map> next = new PriorityQueue<Map>(Math.max(1, readers.size()), { Map a, Map b ->
+                ((Number) a.index).intValue() <=> ((Number) b.index).intValue()
+            } as Comparator<Map>)
+
+            Closure readNext = { int reader ->
+                String line = readers[reader].readLine()
+                if (line != null) {
+                    Map message = (Map) slurper.parseText(line)
+                    message.reader = reader
+                    next.add(message)
+                }
+            }
+            for (int i = 0; i < readers.size(); i++)
+                readNext(i)
+
+            while (!next.isEmpty()) {
+                Map message = next.poll()
+                AppRecord record = AppRecord.fromMap((Map) message.record)
+                AnalysisMetrics.AppTimings timings = message.timings ?
+                        AnalysisMetrics.AppTimings.fromMap(record.name, (Map) message.timings) : null
+
+                AnalysisDriver.writeOutput(timings, settings) {
+                    opal.replay(record)
+                    opal.log.commit()
+                    AnalysisDriver.writeResult(record, settings)
+                }
+
+                readNext((int) message.reader)
+            }
+        } finally {
+            readers.each { BufferedReader reader -> reader.close() }
+        }
+
+        results.each { ShardResult result ->
+            opal.type2Memo.hits.addAndGet(result.memoHits)
+            opal.type2Memo.misses.addAndGet(result.memoMisses)
+        }
+    }
+
+    private void startLocalWorkers() {
+        List<Endpoint> started = new ArrayList<Endpoint>()
+        for (int i = 0; i < localWorkers; i++) {
+            Endpoint endpoint = new Endpoint()
+            endpoint.host = InetAddress.getLoopbackAddress().getHostAddress()
+            endpoint.id = i
+            started.add(endpoint)
+        }
+        endpoints.addAll(started)
+
+        // The spool directory is only accessible to the user, the token file is as well.
+        if (!started.isEmpty()) {
+            workerToken = AccessToken.generate()
+            workerTokenFile = new File(spoolDir, "workers.token")
+            workerToken.write(workerTokenFile)
+        }
+
+        // Start them all before waiting for any of them, they load the tables in parallel.
+        started.each { Endpoint endpoint -> launch(endpoint) }
+        started.each { Endpoint endpoint -> awaitPort(endpoint) }
+    }
+
+    // Start a worker JVM with the classpath, the memory settings and the system properties of
+    // this one, on a free port it writes to a file.
+    private void launch(Endpoint endpoint) {
+        File portFile = new File(spoolDir, "worker-" + endpoint.id + "-" + System.nanoTime() + ".port")
+
+        List<String> command = [System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"]
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments().findAll { String arg ->
+            arg.startsWith("-Xm") || arg.startsWith("-D")
+        })
+        command.addAll(["-cp", System.getProperty("java.class.path"), ShardWorker.class.getName(),
+                        "--port=0", "--port-file=" + portFile.getPath(), "--token-file=" + workerTokenFile.getPath()])
+        command.addAll(workerOptions)
+
+        endpoint.port = 0
+        endpoint.portFile = portFile
+        endpoint.process = new ProcessBuilder(command).directory(new File(settings.projectRoot)).inheritIO().start()
+    }
+
+    private static void awaitPort(Endpoint endpoint) {
+        long deadline = System.currentTimeMillis() + WORKER_START_MILLIS
+        while (!endpoint.portFile.exists()) {
+            if (!endpoint.process.isAlive())
+                throw new IllegalStateException("local worker " + endpoint.id + " exited with " + endpoint.process.exitValue())
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("local worker " + endpoint.id + " did not start")
+            Thread.sleep(50)
+        }
+        endpoint.port = endpoint.portFile.getText("UTF-8").trim().toInteger()
+        endpoint.portFile.delete()
+    }
+
+    // Replace a failed local worker. Returns false when the new one does not come up.
+    private boolean restart(Endpoint endpoint) {
+        endpoint.process.destroyForcibly().waitFor()
+        try {
+            launch(endpoint)
+            awaitPort(endpoint)
+            return true
+        } catch (Exception e) {
+            println "local worker ${endpoint.id} did not restart: ${e}"
+            return false
+        }
+    }
+
+    private void stopLocalWorkers() {
+        endpoints.each { Endpoint endpoint -> endpoint.process?.destroy() }
+        endpoints.each { Endpoint endpoint -> endpoint.process?.waitFor() }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+// Analyzes the shards of a corpus run for a ShardCoordinator (AnalysisDriver --shards=N) in
+// its own JVM. The coordinator starts workers on the local host by itself; a worker on another
+// host is started from its SmartThingsAnalysisTools directory, with the options of the run:
+//
+//   ShardWorker [--port=8421] [--bind=ADDRESS] [--port-file=FILE] [--token-file=shard-worker.token]
+//               [--evaluate] [--describe] [--cache=DIR] [--app-timeout=SECONDS]
+//               [--app-memory=MB] [--capdb=FILE] [--recycle-every=N]
+//
+// and given to the coordinator as --workers=HOST:PORT,... --worker-token-file=FILE. A worker
+// listens on the loopback interface unless --bind says otherwise. It reads files and compiles
+// (with --evaluate, runs) the apps sent to it, so every connection has to start with the token
+// of its token file (see AccessToken): the worker uses the token in the file, or writes a new
+// one there when there is none. Copy that file to the coordinator and to the other workers of
+// the run. The coordinator gives the workers it starts a new token of every run.
+//
+// The protocol is one JSON object per line (UTF-8) over TCP, one shard per connection, and
+// the worker answers every app before the next one is sent:
+//
+//   coordinator  {"shard":3,"token":TOKEN,"timings":true}             start of shard 3
+//   coordinator  {"index":17,"path":"a/app.groovy","source":BASE64}   app 17 of the corpus
+//   worker       {"index":17,"record":{...},"timings":{...}}          its AppRecord.toMap() and,
+//                                                                     when asked for, the
+//                                                                     AppTimings.toMap() of it
+//   ...
+//   coordinator  {"end":true}
+//   worker       {"end":true,"memoHits":H,"memoMisses":M}             type-2 memo use of the shard
+//
+// When an app cannot be analyzed the worker answers {"error":"..."} and closes the connection,
+// the coordinator then retries the shard. A connection that does not start with the token is
+// answered the same way.
+class ShardWorker {
+
+    static final int DEFAULT_PORT = 8421
+    static final String DEFAULT_TOKEN_FILE = "shard-worker.token"
+
+    ServerSocket server
+    AccessToken token
+    AnalysisDriver.AnalysisWorker worker
+    AnalysisDriver.RunSettings settings
+
+    static main(def args) {
+        def options = AnalysisDriver.parseOptions(args)
+
+        def project_root = new File(".").getCanonicalPath()
+        println("Working Path: " + project_root.toString())
+
+        OPAnalysisAST opal = AnalysisDriver.loadAnalyser(project_root, new Logger(), options.capdb ? new File(options.capdb) : null)
+        opal.describeApps = options.describe == "true"
+
+        // The coordinator leaves out the apps of the reflection skip list.
+        AnalysisDriver.RunSettings settings = new AnalysisDriver.RunSettings()
+        settings.projectRoot = project_root
+        settings.reflectionSkip = []
+        settings.evaluate = options.evaluate == "true"
+
+        if (options.cache)
+            settings.cache = new AnalysisCache(new File(options.cache),
+                    AnalysisDriver.tableFiles(project_root) + [new File(project_root + "/" + "skip_apps_reflection_falsepos.txt")],
+                    "evaluate=" + settings.evaluate + ",describe=" + opal.describeApps)
+
+        settings.watchdog = AnalysisDriver.createWatchdog(options, settings.evaluate)
+
+        if (options["recycle-every"])
+            settings.recycleEvery = options["recycle-every"].toInteger()
+
+        InetAddress address = options.bind ? InetAddress.getByName(options.bind) : InetAddress.getLoopbackAddress()
+        int port = options.port ? options.port.toInteger() : DEFAULT_PORT
+
+        File tokenFile = new File(options["token-file"] ?: project_root + "/" + DEFAULT_TOKEN_FILE)
+
+        ShardWorker shardWorker = new ShardWorker(opal, settings)
+        shardWorker.token = readOrCreateToken(tokenFile)
+        shardWorker.listen(address, port)
+
+        println("Listening on " + address.getHostAddress() + ":" + shardWorker.server.getLocalPort() + ", token in " + tokenFile)
+
+        // Tell a coordinator that started this worker on a free port (--port=0) where it is.
+        if (options["port-file"])
+            writePortFile(new File(options["port-file"]), shardWorker.server.getLocalPort())
+
+        shardWorker.serve()
+    }
+
+    public ShardWorker(OPAnalysisAST tables, AnalysisDriver.RunSettings runSettings) {
+        settings = runSettings
+        worker = new AnalysisDriver.AnalysisWorker(tables, settings)
+    }
+
+    void listen(InetAddress address, int port) {
+        server = new ServerSocket(port, 50, address)
+    }
+
+    // Serve one coordinator connection after the other, until the process is stopped.
+    void serve() {
+        while (true) {
+            Socket socket = server.accept()
+            try {
+                analyzeShard(socket)
+            } catch (Exception e) {
+                // The coordinator went away (it retries the shard elsewhere), or the client does
+                // not speak the protocol.
+                println "shard connection lost: " + e
+            } finally {
+                socket.close()
+            }
+        }
+    }
+
+    void analyzeShard(Socket socket) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"))
+        Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"))
+        JsonSlurper slurper = new JsonSlurper()
+
+        Map start = (Map) slurper.parseText(reader.readLine() ?: "{}")
+        if (!token.matches((String) start.token)) {
+            println "rejected a connection from ${socket.getRemoteSocketAddress()} without the token"
+            send(writer, [error: "the token of the worker is required"])
+            return
+        }
+        println "--> Start shard: ${start.shard}"
+
+        // Time the apps when the run of the coordinator has metrics.
+        worker.opal.timer = start.timings ? new AnalysisMetrics.AppTimer() : null
+
+        long memoHits = worker.opal.type2Memo.hits.get()
+        long memoMisses = worker.opal.type2Memo.misses.get()
+
+        String line
+        while ((line = reader.readLine()) != null) {
+            Map request = (Map) slurper.parseText(line)
+            if (request.end) {
+                send(writer, [end       : true,
+                              memoHits  : worker.opal.type2Memo.hits.get() - memoHits,
+                              memoMisses: worker.opal.type2Memo.misses.get() - memoMisses])
+                return
+            }
+
+            CorpusEntry entry = new CorpusEntry((String) request.path, Base64.getDecoder().decode((String) request.source))
+
+            AppRecord record
+            try {
+                record = AnalysisDriver.analyzeEntry(entry, worker.compiler, worker.opal, settings)
+            } catch (Throwable t) {
+                t.printStackTrace()
+                send(writer, [error: entry.name + ": " + t.toString()])
+                return
+            } finally {
+                worker.log.drain()
+            }
+
+            Map reply = [index: request.index, record: record.toMap()]
+            AnalysisMetrics.AppTimings timings = worker.opal.timer?.take()
+            if (timings != null)
+                reply.timings = timings.toMap()
+            send(writer, reply)
+        }
+    }
+
+    private static void send(Writer writer, Map message) {
+        writer.write(JsonOutput.toJson(message))
+        writer.write('\n')
+        writer.flush()
+    }
+
+    // The token of the given file, or a new one written to it (readable only by the user).
+    static AccessToken readOrCreateToken(File file) {
+        if (file.exists())
+            return AccessToken.read(file)
+
+        AccessToken created = AccessToken.generate()
+        created.write(file)
+        return created
+    }
+
+    // Write the port through a temporary file, so the coordinator never reads half of it.
+    private static void writePortFile(File file, int port) {
+        File temp = new File(file.getPath() + ".tmp")
+        temp.setText(Integer.toString(port), "UTF-8")
+        if (!temp.renameTo(file))
+            throw new IOException("cannot write " + file)
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+// Writes a large corpus for memory and throughput tests: the apps of an existing corpus,
+// repeated until the given number of apps, as a zip file. Every copy gets its own name
+// (00042-<app>.groovy) and a comment with its number, so no two apps have the same source and
+// an analysis cache does not short-cut the copies. E.g. a bounded-memory check of 10000 apps:
+//
+//   SyntheticCorpus Top200Apps synthetic.zip --apps=10000
+//   java -Xmx512m ... AnalysisDriver --corpus=synthetic.zip --trace=loader=info
+//
+// prints the heap and the number of loaded classes whenever the app class loader is recycled.
+class SyntheticCorpus {
+
+    static final int DEFAULT_APPS = 10000
+
+    static main(def args) {
+        def options = AnalysisDriver.parseOptions(args)
+        List<String> paths = args.findAll { String arg -> !arg.startsWith("--") }
+        if (paths.size() < 2) {
+            println "usage: SyntheticCorpus <corpus directory, zip or tar file> <out.zip> [--apps=" + DEFAULT_APPS + "]"
+            return
+        }
+
+        int apps = options.apps ? options.apps.toInteger() : DEFAULT_APPS
+        int written = write(CorpusSource.open(new File(paths[0])), new File(paths[1]), apps)
+
+        println "Wrote " + written + " apps to " + new File(paths[1]).getCanonicalPath()
+    }
+
+    // Write the given number of apps, taken from the corpus in turn, and return the number
+    // written (0 when the corpus has no apps).
+    static int write(CorpusSource corpus, File out, int apps) {
+        List<CorpusEntry> entries = new ArrayList<CorpusEntry>()
+        corpus.eachEntry { CorpusEntry entry -> entries.add(entry) }
+        if (entries.isEmpty())
+            return 0
+
+        int width = Integer.toString(apps - 1).length()
+
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(out))).withStream { zip ->
+            for (int i = 0; i < apps; i++) {
+                CorpusEntry entry = entries[i % entries.size()]
+
+                zip.putNextEntry(new ZipEntry(String.format("%0" + width + "d-%s", i, entry.name)))
+                zip.write(entry.source)
+                zip.write(("\n// synthetic copy " + i + "\n").getBytes("UTF-8"))
+                zip.closeEntry()
+            }
+        }
+        return apps
+    }
+}
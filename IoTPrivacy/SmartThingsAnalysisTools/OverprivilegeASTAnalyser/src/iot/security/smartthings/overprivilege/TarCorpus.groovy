@@ -0,0 +1,204 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.StandardOpenOption
+import java.util.zip.GZIPInputStream
+
+// The apps of a tar file, read in place without extracting the archive. An uncompressed tar
+// file is memory-mapped (if it is below 2 GB), a gzipped one is inflated while it is read.
+// Understands ustar names with a prefix as well as GNU (type L) and pax (path=) long names.
+class TarCorpus extends CorpusSource {
+
+    static final int BLOCK = 512
+
+    static final Charset NAME_CHARSET = Charset.forName("UTF-8")
+
+    File file
+
+    public TarCorpus(File tarFile) {
+        file = tarFile
+    }
+
+    @Override
+    void eachEntry(Closure action) {
+        String name = file.getName().toLowerCase()
+        if (name.endsWith(".gz") || name.endsWith(".tgz")) {
+            new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)).withStream { input ->
+                readEntries(input, action)
+            }
+            return
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+        try {
+            InputStream input
+            if (channel.size() <= Integer.MAX_VALUE)
+                input = new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            else
+                input = new BufferedInputStream(new FileInputStream(file), 1 << 16)
+
+            input.withStream { readEntries(input, action) }
+        } finally {
+            channel.close()
+        }
+    }
+
+    static void readEntries(InputStream input, Closure action) {
+        DataInputStream data = new DataInputStream(input)
+        byte[] header = new byte[BLOCK]
+        String longName = null
+
+        while (true) {
+            if (!readBlock(data, header) || isZeroBlock(header))
+                return
+
+            String path = field(header, 0, 100)
+            String prefix = field(header, 345, 155)
+            if (!prefix.isEmpty() && field(header, 257, 5) == "ustar")
+                path = prefix + "/" + path
+
+            long size = octal(header, 124, 12)
+            char type = (char) header[156]
+
+            byte[] content = null
+            if (type == (char) 'L' || type == (char) 'x' || ((type == (char) '0' || type == (char) 0) && isApp(longName ?: path)))
+                content = readContent(data, size)
+            else
+                skipContent(data, size)
+
+            if (type == (char) 'L') {
+                longName = new String(content, NAME_CHARSET).replaceAll(/\u0000+$/, "")
+            } else if (type == (char) 'x') {
+                longName = paxPath(content) ?: longName
+            } else {
+                if (content != null)
+                    action.call(new CorpusEntry(longName ?: path, content))
+                longName = null
+            }
+        }
+    }
+
+    // Read a block, or return false at the end of the archive.
+    private static boolean readBlock(DataInputStream data, byte[] block) {
+        try {
+            data.readFully(block)
+            return true
+        } catch (EOFException ignored) {
+            return false
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0)
+                return false
+        }
+        return true
+    }
+
+    private static byte[] readContent(DataInputStream data, long size) {
+        byte[] content = new byte[(int) size]
+        data.readFully(content)
+        skipFully(data, padding(size))
+        return content
+    }
+
+    private static void skipContent(DataInputStream data, long size) {
+        skipFully(data, size + padding(size))
+    }
+
+    private static long padding(long size) {
+        return (BLOCK - size % BLOCK) % BLOCK
+    }
+
+    private static void skipFully(InputStream input, long count) {
+        while (count > 0) {
+            long skipped = input.skip(count)
+            if (skipped <= 0) {
+                if (input.read() < 0)
+                    throw new EOFException("truncated tar file")
+                skipped = 1
+            }
+            count -= skipped
+        }
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset
+        while (end < offset + length && header[end] != 0)
+            end++
+        return new String(header, offset, end - offset, NAME_CHARSET)
+    }
+
+    // A numeric field: octal digits, or big-endian binary when the high bit of the first byte is set.
+    private static long octal(byte[] header, int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            long value = 0
+            for (int i = offset + 1; i < offset + length; i++)
+                value = (value << 8) | (header[i] & 0xff)
+            return value
+        }
+
+        String digits = field(header, offset, length).trim()
+        return digits.isEmpty() ? 0 : Long.parseLong(digits, 8)
+    }
+
+    // The path of a pax extended header ("<length> path=<path>\n" records), or null.
+    private static String paxPath(byte[] content) {
+        String path = null
+        new String(content, NAME_CHARSET).eachLine { String line ->
+            int space = line.indexOf(' ')
+            if (space > 0 && line.startsWith("path=", space + 1))
+                path = line.substring(space + 6)
+        }
+        return path
+    }
+
+    // An InputStream over a memory-mapped file.
+    static class MappedInputStream extends InputStream {
+        ByteBuffer buffer
+
+        MappedInputStream(ByteBuffer mapped) {
+            buffer = mapped
+        }
+
+        @Override
+        int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1
+        }
+
+        @Override
+        int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0
+            if (!buffer.hasRemaining())
+                return -1
+
+            int count = Math.min(length, buffer.remaining())
+            buffer.get(bytes, offset, count)
+            return count
+        }
+
+        @Override
+        long skip(long count) {
+            int skipped = (int) Math.min(count, (long) buffer.remaining())
+            buffer.position(buffer.position() + skipped)
+            return skipped
+        }
+
+        @Override
+        int available() {
+            return buffer.remaining()
+        }
+    }
+}
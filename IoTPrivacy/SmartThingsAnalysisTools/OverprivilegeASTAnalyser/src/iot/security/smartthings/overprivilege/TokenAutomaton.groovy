@@ -0,0 +1,125 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import groovy.transform.CompileStatic
+
+// Aho-Corasick automaton that finds a set of ASCII tokens in one pass over chars.
+// The failure transitions are folded into a full transition table, next[state * 256 + symbol],
+// so every symbol costs one array load. outputs[state] holds the indexes of the tokens that
+// end at the state (null when none). Used by SensitiveApiRules on every method name, so it is
+// compiled statically.
+@CompileStatic
+class TokenAutomaton {
+
+    final int[] next
+    final int[][] outputs
+
+    TokenAutomaton(List<String> tokens) {
+        // The trie of the tokens, -1 where it has no edge.
+        List<int[]> edges = new ArrayList<int[]>()
+        List<List<Integer>> ends = new ArrayList<List<Integer>>()
+        edges.add(noEdges())
+        ends.add(null)
+
+        for (int t = 0; t < tokens.size(); t++) {
+            String token = tokens[t]
+            if (token.isEmpty())
+                throw new IllegalArgumentException("empty token")
+
+            int state = 0
+            for (int i = 0; i < token.length(); i++) {
+                int c = (int) token.charAt(i)
+                if (c >= 128)
+                    throw new IllegalArgumentException("token is not ASCII: " + token)
+
+                if (edges[state][c] < 0) {
+                    edges[state][c] = edges.size()
+                    edges.add(noEdges())
+                    ends.add(null)
+                }
+                state = edges[state][c]
+            }
+            if (ends[state] == null)
+                ends[state] = new ArrayList<Integer>()
+            ends[state].add(t)
+        }
+
+        int states = edges.size()
+        next = new int[states << 8]
+        outputs = new int[states][]
+        int[] failure = new int[states]
+
+        // Breadth first, so the failure state of a state is complete before the state.
+        Deque<Integer> queue = new ArrayDeque<Integer>()
+        for (int c = 0; c < 256; c++) {
+            int child = edges[0][c]
+            next[c] = child < 0 ? 0 : child
+            if (child > 0)
+                queue.add(child)
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll()
+            outputs[state] = merge(ends[state], outputs[failure[state]])
+
+            for (int c = 0; c < 256; c++) {
+                int child = edges[state][c]
+                if (child < 0) {
+                    next[(state << 8) | c] = next[(failure[state] << 8) | c]
+                } else {
+                    next[(state << 8) | c] = child
+                    failure[child] = next[(failure[state] << 8) | c]
+                    queue.add(child)
+                }
+            }
+        }
+    }
+
+    // The indexes of the tokens found in the text. Chars outside of Latin-1 are in no token,
+    // so the search starts over after them.
+    BitSet find(CharSequence text) {
+        BitSet found = new BitSet()
+        int state = 0
+
+        for (int i = 0; i < text.length(); i++) {
+            int c = (int) text.charAt(i)
+            if (c >= 256) {
+                state = 0
+                continue
+            }
+
+            state = next[(state << 8) | c]
+            int[] tokens = outputs[state]
+            if (tokens != null) {
+                for (int t : tokens)
+                    found.set(t)
+            }
+        }
+        return found
+    }
+
+    private static int[] merge(List<Integer> own, int[] inherited) {
+        if (own == null)
+            return inherited
+
+        List<Integer> all = new ArrayList<Integer>(own)
+        if (inherited != null) {
+            for (int t : inherited)
+                all.add(t)
+        }
+        return all as int[]
+    }
+
+    private static int[] noEdges() {
+        int[] edges = new int[256]
+        Arrays.fill(edges, -1)
+        return edges
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// Debug tracing of the analysis, off by default. Every category has its own level, read
+// once from system properties when the class is loaded:
+//
+//   -Doverpriv.trace=visitor=debug,permissions=trace    levels by category ("all" sets every category)
+//   -Doverpriv.trace.file=trace.log                     write to a file instead of stderr
+//
+// The levels are constants, so a guarded call site costs a comparison when its category is
+// off and the message is not even built:
+//
+//   if (Trace.VISITOR >= Trace.DEBUG)
+//       Trace.debug(Trace.CAT_VISITOR, "called %s", mce.getMethodAsString())
+//
+// Messages are formatted only when they are written, and never go to stdout or the output file.
+class Trace {
+
+    static final int OFF = 0
+    static final int ERROR = 1
+    static final int WARN = 2
+    static final int INFO = 3
+    static final int DEBUG = 4
+    static final int TRACE = 5
+
+    static final List<String> LEVEL_NAMES = ["off", "error", "warn", "info", "debug", "trace"]
+
+    // Categories.
+    static final String CAT_VISITOR = "visitor"
+    static final String CAT_PERMISSIONS = "permissions"
+    static final String CAT_NLG = "nlg"
+    static final String CAT_LOADER = "loader"
+
+    private static final Map<String, Integer> LEVELS = parseLevels(System.getProperty("overpriv.trace", ""))
+
+    // Level of every category.
+    static final int VISITOR = LEVELS[CAT_VISITOR]
+    static final int PERMISSIONS = LEVELS[CAT_PERMISSIONS]
+    static final int NLG = LEVELS[CAT_NLG]
+    static final int LOADER = LEVELS[CAT_LOADER]
+
+    private static PrintWriter sink
+
+    static void error(String category, String format, Object... args) {
+        write(category, ERROR, format, args)
+    }
+
+    static void warn(String category, String format, Object... args) {
+        write(category, WARN, format, args)
+    }
+
+    static void info(String category, String format, Object... args) {
+        write(category, INFO, format, args)
+    }
+
+    static void debug(String category, String format, Object... args) {
+        write(category, DEBUG, format, args)
+    }
+
+    static void trace(String category, String format, Object... args) {
+        write(category, TRACE, format, args)
+    }
+
+    static synchronized void write(String category, int level, String format, Object... args) {
+        if (sink == null)
+            sink = openSink(System.getProperty("overpriv.trace.file"))
+
+        // Groovy passes a single null argument as a null array.
+        if (args == null)
+            args = [null] as Object[]
+
+        String message = args.length == 0 ? format : String.format(format, args)
+        sink.println("[" + category + " " + LEVEL_NAMES[level] + "] " + message)
+    }
+
+    static synchronized void flush() {
+        sink?.flush()
+    }
+
+    // Parse "category=level,..." into the level of every category (WARN when not given).
+    static Map<String, Integer> parseLevels(String spec) {
+        Map<String, Integer> levels = new LinkedHashMap<String, Integer>()
+        [CAT_VISITOR, CAT_PERMISSIONS, CAT_NLG, CAT_LOADER].each { category -> levels[category] = WARN }
+
+        spec.split(",").each { String entry ->
+            entry = entry.trim()
+            if (entry.isEmpty())
+                return
+
+            int index = entry.indexOf('=')
+            String category = index > 0 ? entry.substring(0, index).trim() : "all"
+            String levelName = (index > 0 ? entry.substring(index + 1) : entry).trim().toLowerCase()
+
+            int level = LEVEL_NAMES.indexOf(levelName)
+            if (level < 0)
+                throw new IllegalArgumentException("unknown trace level: " + levelName)
+
+            if (category == "all")
+                levels.keySet().each { levels[it] = level }
+            else if (levels.containsKey(category))
+                levels[category] = level
+            else
+                throw new IllegalArgumentException("unknown trace category: " + category)
+        }
+
+        return levels
+    }
+
+    private static PrintWriter openSink(String fileName) {
+        if (fileName == null)
+            return new PrintWriter(new OutputStreamWriter(System.err), true)
+
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8")))
+        Runtime.getRuntime().addShutdownHook(new Thread({ flush() } as Runnable))
+        return writer
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+// Type-2 results shared by all apps of a run (and by the workers of a parallel run). The
+// result of an app only depends on the capabilities it requests and on the capabilities its
+// called commands and attributes leave unused, so apps that agree on both get the result of
+// the first one. The tables are read-only during the analysis, so entries never go stale.
+//
+// Like NlgService, a result is computed without holding a lock; two workers that look up the
+// same new key at the same time both compute it (and both count a miss).
+class Type2Memo {
+
+    // The type-2 result for one key: the chosen device of every requested capability and the
+    // unused capabilities of those devices. devices is null when there was nothing to choose.
+    static class Entry {
+        List<String> devices
+        List<String> unusedCaps
+        int optimum
+    }
+
+    private final ConcurrentHashMap<List<BitSet>, Entry> entries = new ConcurrentHashMap<List<BitSet>, Entry>()
+
+    final AtomicLong hits = new AtomicLong()
+    final AtomicLong misses = new AtomicLong()
+
+    // The entry for the requested and unused capabilities, computed by the closure when it is
+    // not known yet.
+    Entry get(BitSet requestedCaps, BitSet unusedCaps, Closure<Entry> compute) {
+        List<BitSet> key = [(BitSet) requestedCaps.clone(), (BitSet) unusedCaps.clone()]
+
+        Entry entry = entries.get(key)
+        if (entry != null) {
+            hits.incrementAndGet()
+            return entry
+        }
+
+        misses.incrementAndGet()
+        entry = compute.call()
+        entries.putIfAbsent(key, entry)
+        return entry
+    }
+
+    int size() {
+        return entries.size()
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+// Exact minimum type-2 overprivilege: choose one device handler for every requested
+// capability so that the handlers together implement the fewest capabilities the app does
+// not use. The input holds, for every requested capability, the unused capabilities of each
+// candidate handler (as capability ids); the result is the index of the chosen handler for
+// every capability and the number of unused capabilities of that choice.
+//
+// The search is a branch and bound over the capabilities, last capability first, with
+//  - dominance pruning: a handler is dropped when an earlier candidate of the same capability
+//    has a subset of its unused capabilities, since the earlier one is never worse,
+//  - a lower bound from the forced capabilities: the unused capabilities every remaining
+//    candidate of a capability has must end up in the result,
+//  - memoization of the explored sub-problems: the remaining capabilities and the unused
+//    capabilities chosen so far determine every completion, so a sub-problem that was
+//    explored before cannot give a better result.
+//
+// Only a strictly better choice replaces the best one, and the candidates are tried in the
+// order given, so of the optimal choices the same one is returned as by a plain enumeration
+// in the order of Utils.uniqueCombinations().
+class Type2Solver {
+
+    // Explored sub-problems kept per solve, to bound the memory of large searches. Beyond
+    // this the search goes on without remembering further sub-problems.
+    static final int MAX_MEMO_STATES = 1 << 17
+
+    // Checked while searching, null when the app has no budget.
+    AppWatchdog.AppWatch watch
+
+    Type2Solver(AppWatchdog.AppWatch appWatch) {
+        watch = appWatch
+    }
+
+    static class Result {
+        // Index of the chosen handler for every capability, in the candidate lists given.
+        int[] choice
+
+        // Number of unused capabilities of the choice.
+        int optimum
+
+        long nanos
+
+        // Search statistics: visited search nodes, handlers dropped by dominance, sub-problems
+        // skipped because they were explored before.
+        long nodes
+        int dominated
+        long memoHits
+    }
+
+    Result solve(List<List<BitSet>> candidates) {
+        long start = System.nanoTime()
+
+        Result result = new Result()
+        int n = candidates.size()
+
+        // Indexes into the original candidate lists of the handlers that are not dominated.
+        int[][] kept = new int[n][]
+        BitSet[][] sets = new BitSet[n][]
+        for (int i = 0; i < n; i++) {
+            List<Integer> keep = undominated(candidates[i])
+            result.dominated += candidates[i].size() - keep.size()
+
+            kept[i] = keep as int[]
+            sets[i] = new BitSet[keep.size()]
+            for (int k = 0; k < keep.size(); k++)
+                sets[i][k] = candidates[i][keep[k]]
+        }
+
+        // forced[i] holds the unused capabilities that any choice for capabilities 0..i has.
+        BitSet[] forced = new BitSet[n + 1]
+        forced[0] = new BitSet()
+        for (int i = 0; i < n; i++) {
+            BitSet common = null
+            sets[i].each { BitSet set ->
+                if (common == null)
+                    common = (BitSet) set.clone()
+                else
+                    common = common & set
+            }
+            forced[i + 1] = forced[i] | (common ?: new BitSet())
+        }
+
+        Search search = new Search()
+        search.sets = sets
+        search.forced = forced
+        search.chosen = new int[n]
+        search.unions = new BitSet[n + 1]
+        search.unions[n] = new BitSet()
+        search.memo = new ArrayList<Set<BitSet>>()
+        for (int i = 0; i < n; i++)
+            search.memo.add(new HashSet<BitSet>())
+
+        explore(search, n - 1)
+
+        if (search.choice != null) {
+            result.choice = new int[n]
+            for (int i = 0; i < n; i++)
+                result.choice[i] = kept[i][search.choice[i]]
+        }
+        result.optimum = search.best
+        result.nodes = search.nodes
+        result.memoHits = search.memoHits
+        result.nanos = System.nanoTime() - start
+        return result
+    }
+
+    // Indexes of the candidates that no earlier candidate dominates.
+    private static List<Integer> undominated(List<BitSet> candidates) {
+        List<Integer> keep = new ArrayList<Integer>()
+        for (int k = 0; k < candidates.size(); k++) {
+            BitSet set = candidates[k]
+            boolean dominated = false
+            for (int j = 0; j < k && !dominated; j++) {
+                BitSet earlier = candidates[j]
+                if (earlier.cardinality() <= set.cardinality() && subsetOf(earlier, set))
+                    dominated = true
+            }
+            if (!dominated)
+                keep.add(k)
+        }
+        return keep
+    }
+
+    private static boolean subsetOf(BitSet set, BitSet of) {
+        BitSet rest = (BitSet) set.clone()
+        rest.andNot(of)
+        return rest.isEmpty()
+    }
+
+    // State of one solve. unions[i] holds the unused capabilities of the handlers chosen for
+    // capabilities i..n-1.
+    private static class Search {
+        BitSet[][] sets
+        BitSet[] forced
+        int[] chosen
+        BitSet[] unions
+        List<Set<BitSet>> memo
+        int memoSize
+
+        int best = Integer.MAX_VALUE
+        int[] choice
+
+        long nodes
+        long memoHits
+    }
+
+    private void explore(Search search, int index) {
+        search.nodes++
+
+        BitSet union = search.unions[index + 1]
+        if (index < 0) {
+            int unused = union.cardinality()
+            if (unused < search.best) {
+                search.best = unused
+                search.choice = search.chosen.clone()
+            }
+            return
+        }
+
+        if ((union | search.forced[index + 1]).cardinality() >= search.best)
+            return
+
+        Set<BitSet> explored = search.memo[index]
+        if (explored.contains(union)) {
+            search.memoHits++
+            return
+        }
+        if (search.memoSize < MAX_MEMO_STATES) {
+            explored.add(union)
+            search.memoSize++
+        }
+
+        watch?.check()
+
+        BitSet[] devices = search.sets[index]
+        for (int i = 0; i < devices.length; i++) {
+            search.unions[index] = union | devices[i]
+            search.chosen[index] = i
+            explore(search, index - 1)
+        }
+    }
+}
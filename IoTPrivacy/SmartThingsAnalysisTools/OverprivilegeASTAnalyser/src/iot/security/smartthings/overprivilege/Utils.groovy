@@ -10,29 +10,61 @@ package iot.security.smartthings.overprivilege;
 
 // Calculate unique combinations for capabilities.
 public class Utils {
-    public static String[][] allUniqueCombinations(LinkedHashMap<String, ArrayList<String>> resList) {
-        int n = resList.keySet().size();
-        int solutions = 1;
 
-        for (ArrayList<String> capList : resList.values()) {
-            solutions = solutions * capList.size();
+    // Iterate over the unique combinations lazily. The combinations are produced in the same
+    // order as before (the first capability changes fastest) but only one is held at a time.
+    public static Iterator<List<String>> uniqueCombinations(LinkedHashMap<String, ? extends List<String>> resList) {
+        return new CombinationIterator(new ArrayList<List<String>>(resList.values()));
+    }
+
+    public static class CombinationIterator implements Iterator<List<String>> {
+        private final List<List<String>> choices;
+        private final int[] positions;
+        private boolean hasNext;
+
+        public CombinationIterator(List<List<String>> choiceLists) {
+            choices = choiceLists;
+            positions = new int[choices.size()];
+
+            hasNext = true;
+            for (List<String> choice : choices) {
+                if (choice.isEmpty())
+                    hasNext = false;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
         }
 
-        String[][] allCombinations = new String[solutions + 1][];
-        allCombinations[0] = resList.keySet();
-
-        for (int i = 0; i < solutions; i++) {
-            ArrayList<String> combination = new ArrayList<String>(n);
-            int j = 1;
-            for (ArrayList<String> capList : resList.values()) {
-                int capSize = capList.size()
-                int dif = (int) i / j;
-                combination.add(capList.get(dif % capSize));
-                j = j * capSize;
+        @Override
+        public List<String> next() {
+            if (!hasNext)
+                throw new NoSuchElementException();
+
+            List<String> combination = new ArrayList<String>(positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                combination.add(choices.get(i).get(positions[i]));
+            }
+
+            // Advance like an odometer, starting with the first capability.
+            hasNext = false;
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] += 1;
+                if (positions[i] < choices.get(i).size()) {
+                    hasNext = true;
+                    break;
+                }
+                positions[i] = 0;
             }
-            allCombinations[i + 1] = combination;
+
+            return combination;
         }
 
-        return allCombinations;
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,41 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege
+
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+// The apps of a zip file, read in place without extracting the archive. ZipFile reads the
+// central directory once and inflates each app on its own.
+class ZipCorpus extends CorpusSource {
+
+    File file
+
+    public ZipCorpus(File zipFile) {
+        file = zipFile
+    }
+
+    @Override
+    void eachEntry(Closure action) {
+        ZipFile zip = new ZipFile(file)
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries()
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement()
+                if (entry.isDirectory() || !isApp(entry.getName()))
+                    continue
+
+                byte[] source = zip.getInputStream(entry).withStream { input -> input.bytes }
+                action.call(new CorpusEntry(entry.getName(), source))
+            }
+        } finally {
+            zip.close()
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks
+
+import iot.security.smartthings.overprivilege.AnalysisDriver
+import iot.security.smartthings.overprivilege.AppCompiler
+import iot.security.smartthings.overprivilege.CapabilityDatabase
+import iot.security.smartthings.overprivilege.Logger
+import iot.security.smartthings.overprivilege.OPAnalysisAST
+import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.control.CompilationUnit
+
+// Sets up the inputs of the analysis phases for the benchmarks: the capability tables, the
+// compiled ASTs of a corpus and the facts the instruction visitor collected from them.
+// Benchmarks run in the directory of the tables (the same one AnalysisDriver runs in), or in
+// the directory given by the overpriv.root system property.
+class AnalyzerFixture {
+
+    // An app of the corpus, compiled up to semantic analysis.
+    static class CompiledApp {
+        File file
+        List<ClassNode> classes
+    }
+
+    // What processApp and analyzePermissions get for one class of an app.
+    static class AppFacts {
+        String name
+        OPAnalysisAST.InsnVisitor insnVis
+        ArrayList<String> declaredMethods
+
+        // Number of device combinations of the type-2 search, before pruning.
+        BigInteger searchSpace
+    }
+
+    static String projectRoot() {
+        return new File(System.getProperty("overpriv.root", ".")).getCanonicalPath()
+    }
+
+    static OPAnalysisAST loadTables(String root, Logger log) {
+        OPAnalysisAST opal = new OPAnalysisAST(log)
+        opal.loadCapRefAll(new File(root + "/" + "capfull.csv"))
+        opal.loadCap2Dev(new File(root + "/" + "cap2dev.txt"))
+        opal.loadDev2Cap(new File(root + "/" + "devhandlers2cap.txt"))
+        opal.loadSensitiveApiRules(new File(root + "/" + "sensitive_apis.csv"))
+        opal.capIndex.freeze()
+        return opal
+    }
+
+    // The capability database of the tables, compiled into a temporary file.
+    static File compileDatabase(String root) {
+        File file = File.createTempFile("capabilities", ".db")
+        file.deleteOnExit()
+        CapabilityDatabase.compile(new File(root + "/" + "capfull.csv"), new File(root + "/" + "cap2dev.txt"),
+                new File(root + "/" + "devhandlers2cap.txt"), file)
+        return file
+    }
+
+    static OPAnalysisAST loadDatabase(File file, Logger log) {
+        OPAnalysisAST opal = new OPAnalysisAST(log)
+        opal.loadCapabilityDatabase(CapabilityDatabase.read(file))
+        opal.loadSensitiveApiRules(new File(projectRoot() + "/" + "sensitive_apis.csv"))
+        opal.capIndex.freeze()
+        return opal
+    }
+
+    // The apps of a corpus directory in a stable order, without the apps AnalysisDriver skips.
+    static List<File> corpusFiles(String root, String corpus) {
+        def skip = new HashSet<String>()
+        new File(root + "/" + "skip_apps_reflection_falsepos.txt").eachLine { line -> skip.add(line + ".txt") }
+
+        List<File> files = new ArrayList<File>()
+        new File(root + "/" + corpus).eachFile { file ->
+            if (!file.getName().equals(".DS_Store") && !skip.contains(file.getName()))
+                files.add(file)
+        }
+        files.sort { it.getName() }
+        return files
+    }
+
+    // A compiler that only parses apps, without running the analyser on them.
+    static AppCompiler parser(String root) {
+        return new AppCompiler(AnalysisDriver.createConfiguration(root, null), false)
+    }
+
+    static CompiledApp compile(AppCompiler compiler, File file) {
+        CompilationUnit unit = compiler.analyze(file)
+
+        CompiledApp app = new CompiledApp()
+        app.file = file
+        app.classes = new ArrayList<ClassNode>(unit.getAST().getClasses())
+        return app
+    }
+
+    // Compile every app of the corpus; apps that do not compile are left out.
+    static List<CompiledApp> compileCorpus(String root, List<File> files) {
+        AppCompiler compiler = parser(root)
+
+        List<CompiledApp> apps = new ArrayList<CompiledApp>()
+        files.each { file ->
+            try {
+                apps.add(compile(compiler, file))
+            } catch (Exception e) {
+                System.err.println("Skipping " + file.getName() + ": " + e.getMessage())
+            }
+        }
+        return apps
+    }
+
+    // Walk a class with a declaration collector alone.
+    static OPAnalysisAST.MethodCodeVisitor collectDeclarations(OPAnalysisAST opal, ClassNode classNode) {
+        OPAnalysisAST.MethodCodeVisitor mcv = new OPAnalysisAST.MethodCodeVisitor(opal)
+        classNode.visitContents(mcv)
+        return mcv
+    }
+
+    static List<AppFacts> collectFacts(OPAnalysisAST opal, List<CompiledApp> apps) {
+        List<AppFacts> facts = new ArrayList<AppFacts>()
+        apps.each { app ->
+            app.classes.each { classNode ->
+                AppFacts fact = new AppFacts()
+                fact.name = app.file.getName() + ":" + classNode.getName()
+                fact.insnVis = opal.visitApp(classNode)
+                fact.declaredMethods = opal.declaredMethodsOf(classNode)
+                fact.searchSpace = searchSpace(opal, fact.insnVis)
+                facts.add(fact)
+            }
+        }
+        return facts
+    }
+
+    static BigInteger searchSpace(OPAnalysisAST opal, OPAnalysisAST.InsnVisitor insnVis) {
+        BigInteger combinations = BigInteger.ONE
+        opal.capIndex.capNamesOf(opal.capIndex.catalogCapBits(insnVis.requestedCaps)).each { cap ->
+            def devices = opal.cap2dev[cap]
+            if (devices != null && devices.size() > 0)
+                combinations = combinations.multiply(BigInteger.valueOf(devices.size()))
+        }
+        return combinations
+    }
+
+    // The apps with the largest type-2 search spaces.
+    static List<AppFacts> worstCases(List<AppFacts> facts, int count) {
+        List<AppFacts> sorted = new ArrayList<AppFacts>(facts)
+        sorted.sort { a, b -> b.searchSpace <=> a.searchSpace }
+        return sorted.subList(0, Math.min(count, sorted.size()))
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+// Runs the analyser benchmarks with the GC profiler, so every result comes with its
+// allocation rate (gc.alloc.rate) and allocation per operation (gc.alloc.rate.norm).
+// Run it from the SmartThingsAnalysisTools directory (or set -Doverpriv.root) with the
+// benchmark and analyser modules on the classpath. The optional argument is a regular
+// expression for the benchmarks to run, e.g. "PermissionBenchmark" or "Visitor.*insn".
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        String root = new File(System.getProperty("overpriv.root", ".")).getAbsolutePath();
+        String include = args.length > 0 ? args[0] : BenchmarkMain.class.getPackage().getName() + ".";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .forks(1)
+                .jvmArgsAppend("-Doverpriv.root=" + root)
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks
+
+import iot.security.smartthings.overprivilege.CapabilityIndex
+import iot.security.smartthings.overprivilege.OPAnalysisAST
+
+// The overprivilege set arithmetic on lists of strings (as processApp and analyzePermissions
+// did it before CapabilityIndex) and the BitSet version, for CapabilityAlgebraBenchmark. The
+// apps are generated from the loaded tables with a fixed seed, both versions must agree on
+// every app.
+class CapabilityAlgebra {
+
+    static class SyntheticApp {
+        List<String> requestedCaps
+        List<String> calledMethods
+        List<String> calledProps
+    }
+
+    OPAnalysisAST tables
+
+    CapabilityAlgebra(OPAnalysisAST tables) {
+        this.tables = tables
+    }
+
+    // Apps request a few catalog capabilities and one unknown one, and call some commands and
+    // attributes of their capabilities, of other capabilities and of their own.
+    List<SyntheticApp> generateApps(int count, Random random) {
+        List<SyntheticApp> apps = new ArrayList<SyntheticApp>()
+
+        for (int i = 0; i < count; i++) {
+            SyntheticApp app = new SyntheticApp()
+            app.requestedCaps = pick(tables.allCapsList, 1 + random.nextInt(6), random)
+            app.requestedCaps.add("capability.unknown" + i)
+
+            def reqCmdAttrs = tables.getCmdAttr(app.requestedCaps)
+            app.calledMethods = pick(reqCmdAttrs[0], random.nextInt(4), random) +
+                    pick(tables.allCommandsList, random.nextInt(2), random) + ["installed", "initialize"]
+            app.calledProps = pick(reqCmdAttrs[1], random.nextInt(4), random) +
+                    pick(tables.allPropsList, random.nextInt(2), random) + ["state"]
+
+            apps.add(app)
+        }
+
+        return apps
+    }
+
+    static List<String> pick(List<String> values, int count, Random random) {
+        List<String> picked = new ArrayList<String>()
+        if (values.isEmpty())
+            return picked
+
+        for (int i = 0; i < count; i++)
+            picked.add(values[random.nextInt(values.size())])
+        return picked
+    }
+
+    // The arithmetic of processApp and analyzePermissions on lists of strings.
+    long runStrings(List<SyntheticApp> apps) {
+        long checksum = 0
+
+        apps.each { app ->
+            def reqCaps = app.requestedCaps.intersect(tables.allCapsList)
+            def reqCmdAttrs = tables.getCmdAttr(reqCaps)
+            def reqCmds = reqCmdAttrs[0].toSet()
+            def reqAttrs = reqCmdAttrs[1].toSet()
+
+            def filteredCalledMethods = app.calledMethods.intersect(reqCmds)
+            def filteredCalledProps = app.calledProps.intersect(reqAttrs)
+
+            def type2Uses_Cmds = app.calledMethods.intersect(tables.allCommandsList).toSet() - filteredCalledMethods.toSet()
+            def type2Uses_Attrs = app.calledProps.intersect(tables.allPropsList).toSet() - filteredCalledProps.toSet()
+
+            def cmdOverpriv = reqCmds.toSet() - filteredCalledMethods.toSet()
+            def attrOverpriv = reqAttrs.toSet() - filteredCalledProps.toSet()
+
+            checksum += type2Uses_Cmds.size() + type2Uses_Attrs.size() + cmdOverpriv.size() + attrOverpriv.size()
+
+            // Unused capabilities of every device that supports a requested capability.
+            reqCaps.toSet().each { cap ->
+                tables.cap2dev[cap]?.each { dev ->
+                    tables.dev2cap[dev]?.toSet()?.each { ucap ->
+                        if (isUnusedCapability(ucap, app.calledMethods, app.calledProps))
+                            checksum += 1
+                    }
+                }
+            }
+        }
+
+        return checksum
+    }
+
+    private boolean isUnusedCapability(String ucap, def calledMethods, def calledProps) {
+        def cmdsAttrs = tables.getCmdAttr([ucap])
+
+        def allCmds = cmdsAttrs[0].toSet()
+        def allAttrs = cmdsAttrs[1].toSet()
+
+        return allCmds.intersect(calledMethods.toSet()).toList().size() == 0 &&
+                allAttrs.intersect(calledProps.toSet()).toList().size() == 0 &&
+                (allCmds.size() > 0 || allAttrs.size() > 0)
+    }
+
+    // The same arithmetic on the ids of CapabilityIndex.
+    long runBits(List<SyntheticApp> apps) {
+        CapabilityIndex index = tables.capIndex
+        long checksum = 0
+
+        apps.each { app ->
+            BitSet reqCapBits = index.catalogCapBits(app.requestedCaps)
+            BitSet reqCmdBits = index.commandsOf(reqCapBits)
+            BitSet reqAttrBits = index.attrsOf(reqCapBits)
+            BitSet calledCmdBits = index.commandBits(app.calledMethods)
+            BitSet calledAttrBits = index.attrBits(app.calledProps)
+
+            BitSet type2CmdBits = (BitSet) calledCmdBits.clone()
+            type2CmdBits.andNot(reqCmdBits)
+            BitSet type2AttrBits = (BitSet) calledAttrBits.clone()
+            type2AttrBits.andNot(reqAttrBits)
+
+            BitSet cmdOverprivBits = (BitSet) reqCmdBits.clone()
+            cmdOverprivBits.andNot(calledCmdBits)
+            BitSet attrOverprivBits = (BitSet) reqAttrBits.clone()
+            attrOverprivBits.andNot(calledAttrBits)
+
+            checksum += type2CmdBits.cardinality() + type2AttrBits.cardinality() +
+                    cmdOverprivBits.cardinality() + attrOverprivBits.cardinality()
+
+            BitSet unusedBits = index.unusedCaps(calledCmdBits, calledAttrBits)
+            for (int cap = reqCapBits.nextSetBit(0); cap >= 0; cap = reqCapBits.nextSetBit(cap + 1)) {
+                tables.cap2dev[index.capNames[cap]]?.each { dev ->
+                    BitSet devCaps = index.deviceCaps[dev]
+                    if (devCaps != null)
+                        checksum += (devCaps & unusedBits).cardinality()
+                }
+            }
+        }
+
+        return checksum
+    }
+}
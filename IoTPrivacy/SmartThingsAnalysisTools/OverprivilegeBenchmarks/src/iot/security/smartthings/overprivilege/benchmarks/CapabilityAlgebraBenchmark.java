@@ -0,0 +1,58 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The overprivilege set arithmetic on lists of strings and on the ids of CapabilityIndex, for
+// the same synthetic apps (see CapabilityAlgebra). One operation is one pass over the apps.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CapabilityAlgebraBenchmark {
+
+    @Param({"1000"})
+    public int apps;
+
+    private CapabilityAlgebra algebra;
+    private List<CapabilityAlgebra.SyntheticApp> generated;
+
+    @Setup
+    public void setUp() {
+        algebra = new CapabilityAlgebra(AnalyzerFixture.loadTables(AnalyzerFixture.projectRoot(), new Logger()));
+        generated = algebra.generateApps(apps, new Random(42));
+
+        long expected = algebra.runStrings(generated);
+        long actual = algebra.runBits(generated);
+        if (expected != actual)
+            throw new IllegalStateException("Results differ: " + expected + " (strings) vs " + actual + " (bits)");
+    }
+
+    @Benchmark
+    public long strings() {
+        return algebra.runStrings(generated);
+    }
+
+    @Benchmark
+    public long bits() {
+        return algebra.runBits(generated);
+    }
+}
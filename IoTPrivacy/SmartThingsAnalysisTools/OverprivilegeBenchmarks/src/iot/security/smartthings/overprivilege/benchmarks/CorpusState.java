@@ -0,0 +1,69 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.Logger;
+import iot.security.smartthings.overprivilege.OPAnalysisAST;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// A corpus compiled up to semantic analysis, with the capability tables loaded and the facts
+// of the instruction visitor collected for every class. The analyser prints its progress to
+// stdout, which is discarded while the benchmarks run.
+@State(Scope.Benchmark)
+public class CorpusState {
+
+    @Param({"Top100Apps", "Top200Apps"})
+    public String corpus;
+
+    public String root;
+    public Logger log;
+    public OPAnalysisAST opal;
+    public List<File> files;
+    public List<AnalyzerFixture.CompiledApp> apps;
+    public List<AnalyzerFixture.AppFacts> facts;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        root = AnalyzerFixture.projectRoot();
+        log = new Logger();
+        opal = AnalyzerFixture.loadTables(root, log);
+        files = AnalyzerFixture.corpusFiles(root, corpus);
+        apps = AnalyzerFixture.compileCorpus(root, files);
+        facts = AnalyzerFixture.collectFacts(opal, apps);
+        log.drain();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+}
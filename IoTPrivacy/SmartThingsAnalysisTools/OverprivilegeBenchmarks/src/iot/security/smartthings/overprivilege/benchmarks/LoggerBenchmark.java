@@ -0,0 +1,75 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Writing the records of the corpus to an output file, line by line with one commit per app
+// as AnalysisDriver does, including the final flush. One operation is one pass over the corpus.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoggerBenchmark {
+
+    private List<String[]> records;
+
+    private File file;
+    private Logger log;
+
+    @Setup(Level.Trial)
+    public void setUpRecords(CorpusState state) {
+        records = new ArrayList<String[]>();
+        for (AnalyzerFixture.AppFacts facts : state.facts) {
+            Object calledCmdAttr = state.opal.processApp(facts.getInsnVis(), facts.getDeclaredMethods());
+            state.opal.analyzePermissions(facts.getInsnVis(), facts.getDeclaredMethods(), calledCmdAttr);
+
+            // The drained text starts with a line separator, like every appended line.
+            String text = state.log.drain();
+            String separator = System.getProperty("line.separator");
+            records.add(text.substring(Math.min(text.length(), separator.length())).split(separator, -1));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openLog() throws IOException {
+        file = File.createTempFile("overprivout", ".txt");
+        log = new Logger(file.getPath());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeLog() {
+        log.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void writeRecords() throws IOException {
+        for (String[] lines : records) {
+            for (String line : lines)
+                log.append(line);
+            log.commit();
+        }
+        log.flush();
+    }
+}
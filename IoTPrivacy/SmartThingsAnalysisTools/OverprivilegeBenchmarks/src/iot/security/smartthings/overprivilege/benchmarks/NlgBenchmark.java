@@ -0,0 +1,63 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.NlgService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import simplenlg.framework.NLGFactory;
+import simplenlg.lexicon.Lexicon;
+import simplenlg.phrasespec.SPhraseSpec;
+import simplenlg.realiser.english.Realiser;
+
+import java.util.concurrent.TimeUnit;
+
+// The SimpleNLG work of the analysis: setting up a lexicon, factory and realiser, realising
+// one description sentence, and getting the same sentence from the shared NlgService.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NlgBenchmark {
+
+    private NLGFactory nlgFactory;
+    private Realiser realiser;
+
+    @Setup
+    public void setUp() {
+        Lexicon lexicon = Lexicon.getDefaultLexicon();
+        nlgFactory = new NLGFactory(lexicon);
+        realiser = new Realiser(lexicon);
+    }
+
+    @Benchmark
+    public Realiser createRealiser() {
+        Lexicon lexicon = Lexicon.getDefaultLexicon();
+        new NLGFactory(lexicon);
+        return new Realiser(lexicon);
+    }
+
+    @Benchmark
+    public String realiseSentence() {
+        SPhraseSpec capInfo = nlgFactory.createClause();
+        capInfo.setSubject("The App");
+        capInfo.setVerb("request");
+        capInfo.setObject("[capability.switch, capability.motionsensor]");
+        return realiser.realiseSentence(capInfo);
+    }
+
+    @Benchmark
+    public String serviceSentence() {
+        return NlgService.get().sentence("The App", "request", "[capability.switch, capability.motionsensor]");
+    }
+}
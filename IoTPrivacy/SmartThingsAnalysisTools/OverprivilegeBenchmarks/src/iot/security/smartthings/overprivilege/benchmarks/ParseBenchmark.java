@@ -0,0 +1,45 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.AppCompiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Compiling every app of the corpus up to SEMANTIC_ANALYSIS, without the analyser.
+// One operation is one pass over the corpus.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+
+    private AppCompiler compiler;
+
+    @Setup
+    public void setUp(CorpusState state) {
+        compiler = AnalyzerFixture.parser(state.root);
+    }
+
+    @Benchmark
+    public void parseCorpus(CorpusState state, Blackhole blackhole) {
+        for (AnalyzerFixture.CompiledApp app : state.apps) {
+            File file = app.getFile();
+            blackhole.consume(AnalyzerFixture.compile(compiler, file));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.Type2Memo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// processApp and analyzePermissions on the facts collected from the corpus, either for all
+// classes of the corpus or for the ones with the largest type-2 search spaces. One operation
+// is one pass over the selected classes, see the setup output for their number.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PermissionBenchmark {
+
+    static final int WORST_CASES = 5;
+
+    @Param({"all", "worst"})
+    public String apps;
+
+    private List<AnalyzerFixture.AppFacts> selected;
+
+    @Setup
+    public void setUp(CorpusState state) {
+        selected = apps.equals("worst") ? AnalyzerFixture.worstCases(state.facts, WORST_CASES) : state.facts;
+
+        System.err.println("Selected " + selected.size() + " classes of " + state.corpus);
+        for (AnalyzerFixture.AppFacts facts : AnalyzerFixture.worstCases(selected, WORST_CASES))
+            System.err.println("  " + facts.getName() + ": " + facts.getSearchSpace() + " device combinations");
+    }
+
+    @Benchmark
+    public String processApp(CorpusState state) {
+        for (AnalyzerFixture.AppFacts facts : selected)
+            state.opal.processApp(facts.getInsnVis(), facts.getDeclaredMethods());
+        return state.log.drain();
+    }
+
+    // After the first pass every type-2 result comes from the memo, as for the apps of a run
+    // that repeat an earlier app's capabilities.
+    @Benchmark
+    public String analyzePermissions(CorpusState state) {
+        for (AnalyzerFixture.AppFacts facts : selected)
+            state.opal.analyzePermissions(facts.getInsnVis(), facts.getDeclaredMethods(),
+                    state.opal.getCalledMethodsProps(facts.getInsnVis()));
+        return state.log.drain();
+    }
+
+    // Every pass starts with an empty memo, so only the apps repeating an earlier app of the
+    // pass share a result.
+    @Benchmark
+    public String analyzePermissionsEmptyMemo(CorpusState state) {
+        state.opal.setType2Memo(new Type2Memo());
+        for (AnalyzerFixture.AppFacts facts : selected)
+            state.opal.analyzePermissions(facts.getInsnVis(), facts.getDeclaredMethods(),
+                    state.opal.getCalledMethodsProps(facts.getInsnVis()));
+        return state.log.drain();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import iot.security.smartthings.overprivilege.Logger;
+import iot.security.smartthings.overprivilege.OPAnalysisAST;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Loading capfull.csv, cap2dev.txt and devhandlers2cap.txt and building the capability index,
+// from the text tables and from the compiled capability database.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TableLoadBenchmark {
+
+    private String root;
+    private File database;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = AnalyzerFixture.projectRoot();
+        database = AnalyzerFixture.compileDatabase(root);
+    }
+
+    @Benchmark
+    public OPAnalysisAST loadTables() {
+        return AnalyzerFixture.loadTables(root, new Logger());
+    }
+
+    @Benchmark
+    public OPAnalysisAST loadDatabase() {
+        return AnalyzerFixture.loadDatabase(database, new Logger());
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * SmartThingsAnalysisTools Copyright 2016 Regents of the University of Michigan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package iot.security.smartthings.overprivilege.benchmarks;
+
+import org.codehaus.groovy.ast.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Walking the compiled classes of the corpus. methodCodeVisitor runs the declaration
+// collector alone, insnVisitor runs the full instruction visitor (which collects the
+// declarations in the same walk) as OPAnalysisAST.call does. One operation is one pass
+// over the corpus.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class VisitorBenchmark {
+
+    @Benchmark
+    public void methodCodeVisitor(CorpusState state, Blackhole blackhole) {
+        for (AnalyzerFixture.CompiledApp app : state.apps) {
+            for (ClassNode classNode : app.getClasses())
+                blackhole.consume(AnalyzerFixture.collectDeclarations(state.opal, classNode));
+        }
+    }
+
+    @Benchmark
+    public void insnVisitor(CorpusState state, Blackhole blackhole) {
+        for (AnalyzerFixture.CompiledApp app : state.apps) {
+            for (ClassNode classNode : app.getClasses())
+                blackhole.consume(state.opal.visitApp(classNode));
+        }
+        state.log.drain();
+    }
+}